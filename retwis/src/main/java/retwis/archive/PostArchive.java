@@ -0,0 +1,368 @@
+package retwis.archive;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import retwis.pojo.Post;
+import retwis.util.PostCodec;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * 归档帖子的本地存储
+ *   旧帖子从redis移出后按帖子id顺序追加到本地的段文件中, 段文件通过内存映射读写.
+ *   每条记录为 长度(4) + 序列化后的帖子, 先写内容再写长度, 长度为0表示段的末尾,
+ *   写到一半时宕机留下的记录长度仍为0, 重启时会被忽略.
+ *   内存中只保存 pid -> 段内位置 的有序数组, 启动时扫描段文件重建.
+ *   索引只在启动时重建, 其他进程之后追加的帖子读不到, 因此归档只支持单节点部署, 见PostArchiver.
+ */
+@Slf4j
+@Component
+public class PostArchive {
+
+    private static final String SUFFIX = ".seg";
+
+    // 段文件所在的目录
+    private final File dir;
+    // 单个段文件的大小
+    private final int segmentBytes;
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    // 按帖子id从小到大排列的段, 最后一个段用于追加
+    private final List<Segment> segments = new ArrayList<>();
+
+    @Autowired
+    public PostArchive(MeterRegistry meterRegistry,
+                       @Value("${retwis.archive.dir:data/archive}") String dir,
+                       @Value("${retwis.archive.segment-bytes:67108864}") int segmentBytes) {
+        this.dir = new File(dir);
+        this.segmentBytes = segmentBytes;
+        Gauge.builder("retwis.archive.posts", this, PostArchive::size).register(meterRegistry);
+        Gauge.builder("retwis.archive.segments", this, PostArchive::segmentCount).register(meterRegistry);
+    }
+
+    /**
+     * 打开已有的段文件, 重建索引
+     */
+    @PostConstruct
+    public void open() throws IOException {
+        File[] files = dir.listFiles((d, name) -> name.endsWith(SUFFIX));
+        if (files == null) {
+            return;
+        }
+        // 文件名为补零的序号, 按名称排序即按写入顺序排序
+        Arrays.sort(files);
+        for (File file : files) {
+            segments.add(Segment.open(file, 0));
+        }
+        log.info("打开{}个归档段文件, 共{}个帖子", segments.size(), size());
+    }
+
+    @PreDestroy
+    public void close() {
+        lock.writeLock().lock();
+        try {
+            for (Segment segment : segments) {
+                segment.close();
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * 追加帖子
+     *   帖子必须按id从小到大排列, 不大于已归档的最大id的帖子会被跳过;
+     *   返回前把数据刷到磁盘, 之后才能从redis删除这些帖子
+     * @param posts
+     * @return 实际追加的帖子数
+     */
+    public int append(List<Post> posts) {
+        lock.writeLock().lock();
+        try {
+            int appended = 0;
+            Segment active = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+            for (Post post : posts) {
+                if (active != null && post.getId() <= active.lastPid()) {
+                    continue;
+                }
+                byte[] record = PostCodec.encode(post);
+                if (active == null || !active.fits(record.length)) {
+                    if (active != null) {
+                        active.force();
+                    }
+                    active = roll(record.length);
+                }
+                active.append(post.getId(), record);
+                appended++;
+            }
+            if (active != null) {
+                active.force();
+            }
+            return appended;
+        } catch (IOException e) {
+            throw new UncheckedIOException("写入归档失败", e);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * 已归档的最大帖子id
+     * @return 归档为空时返回-1
+     */
+    public long lastPid() {
+        lock.readLock().lock();
+        try {
+            for (int s = segments.size() - 1; s >= 0; s--) {
+                if (segments.get(s).count > 0) {
+                    return segments.get(s).lastPid();
+                }
+            }
+            return -1;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * 查询归档的帖子
+     * @param pid
+     * @return 不在归档中时返回null
+     */
+    public Post find(long pid) {
+        lock.readLock().lock();
+        try {
+            Segment segment = segmentOf(pid);
+            return segment == null ? null : segment.find(pid);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * 查询比pid更旧的帖子id
+     * @param pid 为null时从最新的归档帖子开始
+     * @param limit
+     * @return 从新到旧排列的帖子id
+     */
+    public List<String> older(Long pid, int limit) {
+        lock.readLock().lock();
+        try {
+            List<String> pids = new ArrayList<>(Math.min(limit, 64));
+            for (int s = segments.size() - 1; s >= 0 && pids.size() < limit; s--) {
+                Segment segment = segments.get(s);
+                int i = pid == null ? segment.count - 1 : segment.lowerIndex(pid);
+                for (; i >= 0 && pids.size() < limit; i--) {
+                    pids.add(String.valueOf(segment.pids[i]));
+                }
+            }
+            return pids;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * 查询比pid更新的帖子id
+     * @param pid
+     * @param limit
+     * @return 从旧到新排列的帖子id
+     */
+    public List<String> newer(long pid, int limit) {
+        lock.readLock().lock();
+        try {
+            List<String> pids = new ArrayList<>(Math.min(limit, 64));
+            for (int s = 0; s < segments.size() && pids.size() < limit; s++) {
+                Segment segment = segments.get(s);
+                int i = segment.lowerIndex(pid + 1) + 1;
+                for (; i < segment.count && pids.size() < limit; i++) {
+                    pids.add(String.valueOf(segment.pids[i]));
+                }
+            }
+            return pids;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public long size() {
+        lock.readLock().lock();
+        try {
+            long size = 0;
+            for (Segment segment : segments) {
+                size += segment.count;
+            }
+            return size;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private int segmentCount() {
+        lock.readLock().lock();
+        try {
+            return segments.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * 可能包含pid的段
+     * @param pid
+     * @return
+     */
+    private Segment segmentOf(long pid) {
+        for (int s = segments.size() - 1; s >= 0; s--) {
+            Segment segment = segments.get(s);
+            if (segment.count > 0 && segment.pids[0] <= pid) {
+                return segment;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 创建新的段文件
+     * @param recordBytes 第一条记录的大小, 超过段大小的记录单独占用一个段
+     * @return
+     */
+    private Segment roll(int recordBytes) throws IOException {
+        if (!dir.exists() && !dir.mkdirs()) {
+            throw new IOException("无法创建归档目录 " + dir);
+        }
+        File file = new File(dir, String.format("%010d%s", segments.size(), SUFFIX));
+        Segment segment = Segment.open(file, Math.max(segmentBytes, recordBytes + 8));
+        segments.add(segment);
+        return segment;
+    }
+
+    /**
+     * 段文件
+     */
+    private static class Segment {
+
+        private final RandomAccessFile file;
+        private final MappedByteBuffer buffer;
+        // 下一条记录的写入位置
+        private int writePos;
+
+        // 段内的帖子id和记录位置, 按帖子id从小到大排列
+        private long[] pids = new long[1024];
+        private int[] offsets = new int[1024];
+        private int count;
+
+        private Segment(RandomAccessFile file, MappedByteBuffer buffer) {
+            this.file = file;
+            this.buffer = buffer;
+        }
+
+        /**
+         * 打开段文件并扫描已有的记录
+         * @param path
+         * @param size 新建文件的大小, 已有文件保持原来的大小
+         * @return
+         */
+        static Segment open(File path, int size) throws IOException {
+            RandomAccessFile file = new RandomAccessFile(path, "rw");
+            if (file.length() == 0) {
+                file.setLength(size);
+            }
+            MappedByteBuffer buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, file.length());
+            Segment segment = new Segment(file, buffer);
+            segment.scan();
+            return segment;
+        }
+
+        private void scan() {
+            int pos = 0;
+            while (pos + 4 <= buffer.capacity()) {
+                int length = buffer.getInt(pos);
+                if (length <= 0) {
+                    break;
+                }
+                index(buffer.getLong(pos + 4), pos);
+                pos += 4 + length;
+            }
+            writePos = pos;
+        }
+
+        boolean fits(int recordBytes) {
+            return writePos + 4 + recordBytes + 4 <= buffer.capacity();
+        }
+
+        long lastPid() {
+            return count == 0 ? Long.MIN_VALUE : pids[count - 1];
+        }
+
+        void append(long pid, byte[] record) {
+            ByteBuffer out = buffer.duplicate();
+            out.position(writePos + 4);
+            out.put(record);
+            // 内容写完后再写长度, 长度非0的记录一定是完整的
+            buffer.putInt(writePos, record.length);
+            index(pid, writePos);
+            writePos += 4 + record.length;
+        }
+
+        Post find(long pid) {
+            int i = Arrays.binarySearch(pids, 0, count, pid);
+            if (i < 0) {
+                return null;
+            }
+            ByteBuffer in = buffer.duplicate();
+            in.position(offsets[i] + 4);
+            return PostCodec.decode(in);
+        }
+
+        /**
+         * 小于pid的最大帖子id的下标
+         * @param pid
+         * @return 没有时返回-1
+         */
+        int lowerIndex(long pid) {
+            int i = Arrays.binarySearch(pids, 0, count, pid);
+            return i >= 0 ? i - 1 : -i - 2;
+        }
+
+        void force() {
+            buffer.force();
+        }
+
+        void close() {
+            try {
+                buffer.force();
+                file.close();
+            } catch (IOException e) {
+                log.warn("关闭归档段文件失败", e);
+            }
+        }
+
+        private void index(long pid, int offset) {
+            if (count == pids.length) {
+                pids = Arrays.copyOf(pids, count * 2);
+                offsets = Arrays.copyOf(offsets, count * 2);
+            }
+            pids[count] = pid;
+            offsets[count] = offset;
+            count++;
+        }
+    }
+}
@@ -0,0 +1,230 @@
+package retwis.cache;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * 进程内的LRU缓存
+ *   容量有上限,超出时淘汰最久未访问的元素;元素超过ttl后视为过期.
+ *   命中,未命中和淘汰次数通过micrometer暴露.
+ * @param <K>
+ * @param <V>
+ */
+public class LruCache<K, V> implements MeterBinder {
+
+    private final String name;
+    private final int maxSize;
+    private final long ttlMillis;
+
+    // 按访问顺序排列, 头部是最久未访问的元素
+    private final LinkedHashMap<K, Entry<V>> map;
+
+    // 每次失效加1, 用于丢弃失效前开始加载的旧值
+    private long generation;
+
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    /**
+     * @param name 缓存名称,作为监控指标的cache标签
+     * @param maxSize 最大元素数
+     * @param ttlMillis 元素存活时间,小于等于0表示不过期
+     */
+    public LruCache(String name, int maxSize, long ttlMillis) {
+        this.name = name;
+        this.maxSize = maxSize;
+        this.ttlMillis = ttlMillis;
+        this.map = new LinkedHashMap<K, Entry<V>>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<K, Entry<V>> eldest) {
+                if (size() > LruCache.this.maxSize) {
+                    evictions++;
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * 查询缓存
+     * @param key
+     * @return 不存在或已过期时返回null
+     */
+    public synchronized V get(K key) {
+        Entry<V> entry = map.get(key);
+        if (entry != null && entry.expired(ttlMillis)) {
+            map.remove(key);
+            evictions++;
+            entry = null;
+        }
+        if (entry == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        return entry.value;
+    }
+
+    /**
+     * 查询缓存,不存在时调用loader加载并放入缓存
+     *   loader在锁外执行;加载期间发生过失效时,加载结果只返回不缓存
+     * @param key
+     * @param loader 返回null时不缓存
+     * @return
+     */
+    public V get(K key, Function<? super K, ? extends V> loader) {
+        long gen;
+        synchronized (this) {
+            V value = get(key);
+            if (value != null) {
+                return value;
+            }
+            gen = generation;
+        }
+        V value = loader.apply(key);
+        if (value != null) {
+            synchronized (this) {
+                if (gen == generation) {
+                    map.put(key, new Entry<>(value));
+                }
+            }
+        }
+        return value;
+    }
+
+    /**
+     * 批量查询缓存,不存在的键通过一次loader调用加载
+     * @param keys
+     * @param loader 参数为缓存中不存在的键, 返回加载到的值, 不存在的键可以不包含
+     * @return 按keys的顺序, 不包含加载不到的键
+     */
+    public Map<K, V> getAll(Collection<K> keys, Function<List<K>, Map<K, V>> loader) {
+        Map<K, V> result = new LinkedHashMap<>();
+        List<K> missing = new ArrayList<>();
+        long gen;
+        synchronized (this) {
+            for (K key : keys) {
+                V value = get(key);
+                result.put(key, value);
+                if (value == null) {
+                    missing.add(key);
+                }
+            }
+            gen = generation;
+        }
+        if (!missing.isEmpty()) {
+            Map<K, V> loaded = loader.apply(missing);
+            synchronized (this) {
+                for (Map.Entry<K, V> entry : loaded.entrySet()) {
+                    if (entry.getValue() != null && gen == generation) {
+                        map.put(entry.getKey(), new Entry<>(entry.getValue()));
+                    }
+                }
+            }
+            for (K key : missing) {
+                V value = loaded.get(key);
+                if (value == null) {
+                    result.remove(key);
+                } else {
+                    result.put(key, value);
+                }
+            }
+        }
+        return result;
+    }
+
+    public synchronized void put(K key, V value) {
+        map.put(key, new Entry<>(value));
+    }
+
+    /**
+     * 当前的失效次数, 在锁外加载之前记录, 加载后用putIfUnchanged放入缓存
+     * @return
+     */
+    public synchronized long generation() {
+        return generation;
+    }
+
+    /**
+     * 加载期间没有发生过失效时放入缓存, 与get(key, loader)相同, 用于不能在loader中同步加载的调用方
+     * @param key
+     * @param value
+     * @param gen 加载之前generation()的返回值
+     * @return 是否放入了缓存
+     */
+    public synchronized boolean putIfUnchanged(K key, V value, long gen) {
+        if (gen != generation) {
+            return false;
+        }
+        map.put(key, new Entry<>(value));
+        return true;
+    }
+
+    public synchronized void invalidate(K key) {
+        generation++;
+        map.remove(key);
+    }
+
+    public synchronized int size() {
+        return map.size();
+    }
+
+    public synchronized long hitCount() {
+        return hits;
+    }
+
+    public synchronized long missCount() {
+        return misses;
+    }
+
+    public synchronized long evictionCount() {
+        return evictions;
+    }
+
+    /**
+     * 命中率
+     * @return 没有访问时返回0
+     */
+    public synchronized double hitRate() {
+        long total = hits + misses;
+        return total == 0 ? 0 : (double) hits / total;
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        FunctionCounter.builder("retwis.cache.hits", this, LruCache::hitCount)
+                .tag("cache", name).register(registry);
+        FunctionCounter.builder("retwis.cache.misses", this, LruCache::missCount)
+                .tag("cache", name).register(registry);
+        FunctionCounter.builder("retwis.cache.evictions", this, LruCache::evictionCount)
+                .tag("cache", name).register(registry);
+        Gauge.builder("retwis.cache.size", this, LruCache::size)
+                .tag("cache", name).register(registry);
+        Gauge.builder("retwis.cache.hit.rate", this, LruCache::hitRate)
+                .tag("cache", name).register(registry);
+    }
+
+    private static class Entry<V> {
+        private final V value;
+        private final long createTime = System.currentTimeMillis();
+
+        Entry(V value) {
+            this.value = value;
+        }
+
+        boolean expired(long ttlMillis) {
+            return ttlMillis > 0 && System.currentTimeMillis() - createTime > ttlMillis;
+        }
+    }
+}
@@ -0,0 +1,163 @@
+package retwis.cache;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import retwis.pojo.Post;
+import retwis.util.PostCodec;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * 帖子缓存
+ *   帖子发布后不再修改,缓存中保存序列化后的帖子.
+ *   数据写在固定大小的环形缓冲区中,写满后覆盖最早写入的帖子,
+ *   开启off-heap时缓冲区使用直接内存,缓存再大也不会增加GC压力.
+ *   单个ByteBuffer最大2GB,因此按pid把缓存分为多个段.
+ */
+@Component
+public class PostCache {
+
+    // 单个段的最大容量
+    private static final long MAX_SEGMENT_BYTES = 1L << 30;
+
+    private final Segment[] segments;
+
+    private final Counter hits;
+    private final Counter misses;
+
+    @Autowired
+    public PostCache(MeterRegistry meterRegistry,
+                     @Value("${retwis.cache.post.capacity-bytes:67108864}") long capacityBytes,
+                     @Value("${retwis.cache.post.off-heap:false}") boolean offHeap) {
+        int count = (int) Math.max(1, (capacityBytes + MAX_SEGMENT_BYTES - 1) / MAX_SEGMENT_BYTES);
+        int segmentBytes = (int) (capacityBytes / count);
+        segments = new Segment[count];
+        for (int i = 0; i < count; i++) {
+            segments[i] = new Segment(offHeap ? ByteBuffer.allocateDirect(segmentBytes) : ByteBuffer.allocate(segmentBytes));
+        }
+        hits = Counter.builder("retwis.cache.hits").tag("cache", "post").register(meterRegistry);
+        misses = Counter.builder("retwis.cache.misses").tag("cache", "post").register(meterRegistry);
+        Gauge.builder("retwis.cache.size", this, PostCache::size).tag("cache", "post").register(meterRegistry);
+    }
+
+    /**
+     * 查询帖子
+     * @param pid
+     * @return 不在缓存中时返回null
+     */
+    public Post get(long pid) {
+        Post post = segment(pid).get(pid);
+        if (post == null) {
+            misses.increment();
+        } else {
+            hits.increment();
+        }
+        return post;
+    }
+
+    /**
+     * 缓存帖子
+     * @param post id不能为空
+     */
+    public void put(Post post) {
+        segment(post.getId()).put(post.getId(), PostCodec.encode(post));
+    }
+
+    public int size() {
+        int size = 0;
+        for (Segment segment : segments) {
+            size += segment.size();
+        }
+        return size;
+    }
+
+    private Segment segment(long pid) {
+        return segments[(int) Math.floorMod(pid, (long) segments.length)];
+    }
+
+    /**
+     * 环形缓冲区
+     *   每条记录为序列化后的帖子, 记录不会跨越缓冲区末尾.
+     *   位置使用累计写入的字节数, 记录位置不小于 writePos - capacity 时才没有被覆盖.
+     */
+    private static class Segment {
+
+        private final ByteBuffer arena;
+        private final int capacity;
+        private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+        // 累计写入的字节数
+        private long writePos;
+        // pid -> 记录位置, 按写入顺序排列, 头部是最早写入的记录
+        private final LinkedHashMap<Long, Long> index = new LinkedHashMap<>();
+
+        Segment(ByteBuffer arena) {
+            this.arena = arena;
+            this.capacity = arena.capacity();
+        }
+
+        Post get(long pid) {
+            lock.readLock().lock();
+            try {
+                Long pos = index.get(pid);
+                if (pos == null) {
+                    return null;
+                }
+                ByteBuffer buffer = arena.duplicate();
+                buffer.position((int) (pos % capacity));
+                return PostCodec.decode(buffer);
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+
+        void put(long pid, byte[] bytes) {
+            int size = bytes.length;
+            if (size > capacity) {
+                return;
+            }
+            lock.writeLock().lock();
+            try {
+                if (index.containsKey(pid)) {
+                    return;
+                }
+                // 剩余空间不足时从缓冲区头部开始写
+                int offset = (int) (writePos % capacity);
+                if (capacity - offset < size) {
+                    writePos += capacity - offset;
+                    offset = 0;
+                }
+                ByteBuffer buffer = arena.duplicate();
+                buffer.position(offset);
+                buffer.put(bytes);
+                index.put(pid, writePos);
+                writePos += size;
+                // 删除被覆盖的记录
+                Iterator<Map.Entry<Long, Long>> it = index.entrySet().iterator();
+                while (it.hasNext() && it.next().getValue() < writePos - capacity) {
+                    it.remove();
+                }
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+
+        int size() {
+            lock.readLock().lock();
+            try {
+                return index.size();
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package retwis.cache;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+import retwis.pojo.User;
+import retwis.util.KeyUtils;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * 用户信息的本地缓存
+ *   用户的关注数,粉丝数发生变化时,通过redis频道通知所有节点删除缓存
+ */
+@Component
+public class UserCache {
+
+    private final StringRedisTemplate template;
+
+    private final LruCache<String, User> cache;
+
+    @Autowired
+    public UserCache(StringRedisTemplate template,
+                     RedisMessageListenerContainer listenerContainer,
+                     MeterRegistry meterRegistry,
+                     @Value("${retwis.cache.user.max-size:10000}") int maxSize,
+                     @Value("${retwis.cache.user.ttl-millis:60000}") long ttlMillis) {
+        this.template = template;
+        this.cache = new LruCache<>("user", maxSize, ttlMillis);
+        cache.bindTo(meterRegistry);
+        // 收到其他节点(包括自己)的通知后删除缓存
+        listenerContainer.addMessageListener(
+                (message, pattern) -> cache.invalidate(new String(message.getBody(), StandardCharsets.UTF_8)),
+                new ChannelTopic(KeyUtils.userChannel()));
+    }
+
+    /**
+     * 查询用户,缓存中没有时通过loader加载
+     * @param name 用户名
+     * @param loader
+     * @return
+     */
+    public User get(String name, Function<String, User> loader) {
+        return cache.get(name, loader);
+    }
+
+    /**
+     * 批量查询用户,缓存中没有的用户通过loader一次加载
+     * @param names 用户名
+     * @param loader
+     * @return 按names的顺序, 不包含不存在的用户
+     */
+    public Map<String, User> getAll(Collection<String> names, Function<List<String>, Map<String, User>> loader) {
+        return cache.getAll(names, loader);
+    }
+
+    /**
+     * 只查询缓存
+     * @param name 用户名
+     * @return 缓存中没有时返回null
+     */
+    public User getIfPresent(String name) {
+        return cache.get(name);
+    }
+
+    /**
+     * 当前的失效次数, 在异步加载之前记录
+     * @return
+     */
+    public long generation() {
+        return cache.generation();
+    }
+
+    /**
+     * 加载期间没有发生过失效时放入缓存, 用于不能在loader中同步加载的调用方
+     *   用户信息和关注数由多个命令读取, 期间关注或取消关注的失效不能被旧值覆盖
+     * @param user
+     * @param gen 加载之前generation()的返回值
+     */
+    public void putIfUnchanged(User user, long gen) {
+        cache.putIfUnchanged(user.getUsername(), user, gen);
+    }
+
+    /**
+     * 删除所有节点上该用户的缓存
+     * @param name 用户名
+     */
+    public void invalidate(String name) {
+        cache.invalidate(name);
+        template.convertAndSend(KeyUtils.userChannel(), name);
+    }
+}
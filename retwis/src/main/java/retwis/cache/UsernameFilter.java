@@ -0,0 +1,230 @@
+package retwis.cache;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+import retwis.util.KeyUtils;
+
+import javax.annotation.PreDestroy;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 已注册用户名的布隆过滤器
+ *   不存在的用户名直接在本地判断, 不需要访问redis.
+ *   启动后先订阅注册频道, 再分批读取用户列表构建过滤器, 构建期间注册的用户由频道补上;
+ *   构建完成前所有用户名都视为可能存在.
+ *   订阅断开期间的消息会丢失: 定时比较用户列表的长度和构建时的长度加上之后收到的注册消息数,
+ *   列表更长说明丢失了消息, 立即重新构建; 另外可以定时重新构建.
+ *   登录和帖子中@的用户名在过滤器判断不存在时仍然查询redis, 发现漏掉的用户名时同样立即重新构建.
+ */
+@Slf4j
+@Component
+public class UsernameFilter {
+
+    // 每批读取的用户名数量
+    private static final int BATCH_SIZE = 1000;
+
+    private final StringRedisTemplate template;
+
+    // 是否启用
+    private final boolean enabled;
+    // 预计的用户数, 实际用户数更多时按实际用户数的两倍构建
+    private final long expectedUsers;
+    // 期望的误判率
+    private final double fpp;
+    // 定时重新构建的间隔, 为0时不重新构建
+    private final long rebuildMillis;
+    // 检查是否丢失注册消息的间隔, 为0时不检查
+    private final long checkMillis;
+
+    // 正在使用的过滤器, 构建完成前为null
+    private volatile BloomFilter filter;
+    // 正在构建的过滤器, 构建期间注册的用户同时加入
+    private volatile BloomFilter building;
+
+    // 是否已经安排了重新构建
+    private final AtomicBoolean rebuildPending = new AtomicBoolean();
+
+    // 构建时读到的用户列表长度
+    private volatile long builtSize;
+    // 构建开始后收到的注册消息数
+    private final AtomicLong received = new AtomicLong();
+    // 上次检查时的用户列表长度, 只在scheduler线程中访问
+    private long lastSize = -1;
+
+    private final Counter rejected;
+    private final Counter missed;
+    private ScheduledExecutorService scheduler;
+
+    @Autowired
+    public UsernameFilter(StringRedisTemplate template,
+                          RedisMessageListenerContainer listenerContainer,
+                          MeterRegistry meterRegistry,
+                          @Value("${retwis.username-filter.enabled:true}") boolean enabled,
+                          @Value("${retwis.username-filter.expected-users:1000000}") long expectedUsers,
+                          @Value("${retwis.username-filter.fpp:0.01}") double fpp,
+                          @Value("${retwis.username-filter.rebuild-millis:3600000}") long rebuildMillis,
+                          @Value("${retwis.username-filter.check-millis:10000}") long checkMillis) {
+        this.template = template;
+        this.enabled = enabled;
+        this.expectedUsers = expectedUsers;
+        this.fpp = fpp;
+        this.rebuildMillis = rebuildMillis;
+        this.checkMillis = checkMillis;
+        this.rejected = meterRegistry.counter("retwis.username.filter.rejected");
+        this.missed = meterRegistry.counter("retwis.username.filter.missed");
+        if (enabled) {
+            // 收到其他节点(包括自己)注册的用户名后加入过滤器
+            listenerContainer.addMessageListener(
+                    (message, pattern) -> {
+                        received.incrementAndGet();
+                        add(new String(message.getBody(), StandardCharsets.UTF_8));
+                    },
+                    new ChannelTopic(KeyUtils.registrationChannel()));
+        }
+    }
+
+    /**
+     * 应用启动后构建过滤器, 此时已经订阅了注册频道
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void start() {
+        if (!enabled) {
+            return;
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "username-filter");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.execute(this::rebuild);
+        if (rebuildMillis > 0) {
+            scheduler.scheduleWithFixedDelay(this::rebuild, rebuildMillis, rebuildMillis, TimeUnit.MILLISECONDS);
+        }
+        if (checkMillis > 0) {
+            scheduler.scheduleWithFixedDelay(this::check, checkMillis, checkMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @PreDestroy
+    public void stop() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+        }
+    }
+
+    /**
+     * 用户名是否可能存在
+     * @param name
+     * @return false时用户名一定不存在
+     */
+    public boolean mightContain(String name) {
+        BloomFilter current = filter;
+        if (current == null || current.mightContain(name)) {
+            return true;
+        }
+        rejected.increment();
+        return false;
+    }
+
+    /**
+     * 记录新注册的用户名
+     * @param name
+     */
+    public void add(String name) {
+        BloomFilter next = building;
+        if (next != null) {
+            next.add(name);
+        }
+        BloomFilter current = filter;
+        if (current != null) {
+            current.add(name);
+        }
+    }
+
+    /**
+     * 记录过滤器漏掉的已注册用户名, 说明有注册消息丢失, 重新构建过滤器
+     *   重新构建期间再发现的用户名不会重复安排构建
+     * @param name
+     */
+    public void missed(String name) {
+        missed.increment();
+        add(name);
+        if (scheduler != null && rebuildPending.compareAndSet(false, true)) {
+            log.warn("用户名过滤器漏掉了已注册的用户{}, 可能丢失了注册消息, 重新构建", name);
+            scheduler.execute(this::rebuild);
+        }
+    }
+
+    /**
+     * 检查是否丢失了注册消息
+     *   注册时先加入用户列表再发送消息, 消息可能晚于列表到达, 因此用上次检查时的列表长度比较:
+     *   经过一个检查间隔, 构建时的长度加上收到的消息数仍然小于它, 说明有消息丢失, 重新构建
+     */
+    private void check() {
+        if (filter == null) {
+            return;
+        }
+        try {
+            long expected = builtSize + received.get();
+            if (lastSize > expected) {
+                missed.increment(lastSize - expected);
+                log.warn("用户列表有{}个用户, 只收到了{}个用户的注册消息, 可能丢失了注册消息, 重新构建用户名过滤器",
+                        lastSize, expected);
+                rebuild();
+                return;
+            }
+            Long size = template.opsForList().size(KeyUtils.users());
+            lastSize = size == null ? 0 : size;
+        } catch (Exception e) {
+            log.error("检查用户名过滤器失败", e);
+        }
+    }
+
+    /**
+     * 分批读取用户列表重新构建过滤器
+     *   用户列表从头部插入, 按下标分批读取时可能重复读到, 但不会遗漏
+     *   先读列表长度再开始计数注册消息, 期间注册的用户最多被少计一次, 只会多一次重新构建
+     */
+    private void rebuild() {
+        rebuildPending.set(false);
+        lastSize = -1;
+        try {
+            Long size = template.opsForList().size(KeyUtils.users());
+            long users = size == null ? 0 : size;
+            builtSize = users;
+            received.set(0);
+            BloomFilter next = new BloomFilter(Math.max(expectedUsers, users * 2), fpp);
+            building = next;
+            for (long start = 0; ; start += BATCH_SIZE) {
+                List<String> names = template.opsForList().range(KeyUtils.users(), start, start + BATCH_SIZE - 1);
+                if (names == null || names.isEmpty()) {
+                    break;
+                }
+                for (String name : names) {
+                    next.add(name);
+                }
+            }
+            filter = next;
+            log.info("用户名过滤器构建完成, 用户数{}, 位数{}", users, next.bitSize());
+        } catch (Exception e) {
+            log.error("用户名过滤器构建失败", e);
+        } finally {
+            building = null;
+        }
+    }
+}
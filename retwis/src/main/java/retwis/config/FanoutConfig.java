@@ -0,0 +1,35 @@
+package retwis.config;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+
+import java.util.concurrent.ThreadPoolExecutor;
+
+/**
+ * 帖子推送(fan-out)线程池配置
+ */
+@Configuration
+public class FanoutConfig {
+
+    /**
+     * 有界的推送线程池
+     *   队列满时由发帖线程自己执行推送,避免无限堆积任务
+     * @param poolSize 线程数
+     * @param queueCapacity 队列容量
+     * @return
+     */
+    @Bean(name = "fanoutExecutor", destroyMethod = "shutdown")
+    public ThreadPoolTaskExecutor fanoutExecutor(@Value("${retwis.fanout.pool-size:4}") int poolSize,
+                                                 @Value("${retwis.fanout.queue-capacity:1000}") int queueCapacity) {
+        ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+        executor.setCorePoolSize(poolSize);
+        executor.setMaxPoolSize(poolSize);
+        executor.setQueueCapacity(queueCapacity);
+        executor.setThreadNamePrefix("fanout-");
+        executor.setRejectedExecutionHandler(new ThreadPoolExecutor.CallerRunsPolicy());
+        executor.setWaitForTasksToCompleteOnShutdown(true);
+        return executor;
+    }
+}
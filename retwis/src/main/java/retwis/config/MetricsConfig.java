@@ -0,0 +1,36 @@
+package retwis.config;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import retwis.metrics.MethodMetrics;
+import retwis.metrics.RedisCommandMetrics;
+
+/**
+ * 监控指标配置
+ *   BeanPostProcessor需要在其他bean之前创建, 使用静态方法声明, MeterRegistry在用到时才获取
+ */
+@Configuration
+public class MetricsConfig {
+
+    /**
+     * dao和service方法的耗时
+     * @param meterRegistry
+     * @return
+     */
+    @Bean
+    public static MethodMetrics methodMetrics(ObjectProvider<MeterRegistry> meterRegistry) {
+        return new MethodMetrics(meterRegistry);
+    }
+
+    /**
+     * redis命令的耗时和连接使用情况
+     * @param meterRegistry
+     * @return
+     */
+    @Bean
+    public static RedisCommandMetrics redisCommandMetrics(ObjectProvider<MeterRegistry> meterRegistry) {
+        return new RedisCommandMetrics(meterRegistry);
+    }
+}
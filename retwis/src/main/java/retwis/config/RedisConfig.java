@@ -0,0 +1,253 @@
+package retwis.config;
+
+import io.lettuce.core.ClientOptions;
+import io.lettuce.core.SocketOptions;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.pool2.impl.GenericObjectPoolConfig;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnExpression;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.autoconfigure.data.redis.RedisProperties;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.data.redis.connection.RedisClusterConfiguration;
+import org.springframework.data.redis.connection.RedisConnectionFactory;
+import org.springframework.data.redis.connection.RedisPassword;
+import org.springframework.data.redis.connection.RedisStandaloneConfiguration;
+import org.springframework.data.redis.connection.jedis.JedisClientConfiguration;
+import org.springframework.data.redis.connection.jedis.JedisConnectionFactory;
+import org.springframework.data.redis.connection.lettuce.LettuceClientConfiguration;
+import org.springframework.data.redis.connection.lettuce.LettuceConnectionFactory;
+import org.springframework.data.redis.connection.lettuce.LettucePoolingClientConfiguration;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import redis.clients.jedis.JedisPoolConfig;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+
+/**
+ * redis配置
+ *   retwis.redis.client选择客户端:
+ *     lettuce(默认): 普通命令由所有线程共用一个连接, 并发的命令在同一个连接上连续发送(自动流水线);
+ *       pipeline, 事务和阻塞命令需要独占连接, 从连接池借出, 不再每次新建tcp连接;
+ *     jedis: 每次访问从连接池借出一个连接.
+ *   两种客户端的连接池大小和等待时间都由retwis.redis.pool.*设置.
+ *   retwis.redis.topology选择部署方式:
+ *     standalone(默认): spring.redis.host/port指定的单个redis;
+ *     cluster: spring.redis.cluster.nodes指定的redis cluster, 只支持lettuce(jedis的cluster连接不支持pipeline);
+ *     sharded: retwis.redis.shards指定的多个独立redis, 按一致性哈希分片, 见ShardedConnectionFactory.
+ *   用户的键带有hash tag, 在cluster和分片模式下同一个用户的键在同一个节点上.
+ *   旧数据需要先在单机模式下完成迁移, 再导入cluster(redis-cli --cluster import)或各分片(ShardImporter).
+ *   超时, 连接池和部署方式的配置在启动时检查, 配置错误时启动失败.
+ */
+@Slf4j
+@Configuration
+public class RedisConfig {
+
+    private static final String LETTUCE = "'${retwis.redis.client:lettuce}' == 'lettuce'";
+    private static final String JEDIS = "'${retwis.redis.client:lettuce}' == 'jedis'";
+    private static final String NOT_SHARDED = "'${retwis.redis.topology:standalone}' != 'sharded'";
+
+    private final String client;
+    private final String topology;
+    // 分片模式下各分片的host:port
+    private final List<String> shards;
+    // 命令超时时间
+    private final long timeoutMillis;
+    // 建立连接的超时时间
+    private final long connectTimeoutMillis;
+    // 连接池的最大连接数, 最大和最小空闲连接数, 连接用完时等待的最长时间(-1表示一直等待)
+    private final int maxActive;
+    private final int maxIdle;
+    private final int minIdle;
+    private final long maxWaitMillis;
+
+    @Autowired
+    public RedisConfig(RedisProperties redisProperties,
+                       @Value("${retwis.redis.client:lettuce}") String client,
+                       @Value("${retwis.redis.topology:standalone}") String topology,
+                       @Value("${retwis.redis.shards:}") List<String> shards,
+                       @Value("${retwis.redis.timeout-millis:2000}") long timeoutMillis,
+                       @Value("${retwis.redis.connect-timeout-millis:1000}") long connectTimeoutMillis,
+                       @Value("${retwis.redis.pool.max-active:32}") int maxActive,
+                       @Value("${retwis.redis.pool.max-idle:32}") int maxIdle,
+                       @Value("${retwis.redis.pool.min-idle:4}") int minIdle,
+                       @Value("${retwis.redis.pool.max-wait-millis:500}") long maxWaitMillis,
+                       @Value("${retwis.reactive.enabled:false}") boolean reactiveEnabled) {
+        this.client = client;
+        this.topology = topology;
+        this.shards = new ArrayList<>();
+        for (String shard : shards) {
+            if (!shard.trim().isEmpty()) {
+                this.shards.add(shard.trim());
+            }
+        }
+        this.timeoutMillis = timeoutMillis;
+        this.connectTimeoutMillis = connectTimeoutMillis;
+        this.maxActive = maxActive;
+        this.maxIdle = maxIdle;
+        this.minIdle = minIdle;
+        this.maxWaitMillis = maxWaitMillis;
+
+        // 其他取值时连接工厂都不会创建, spring boot会静默地使用默认配置
+        check(client.equals("lettuce") || client.equals("jedis"),
+                "retwis.redis.client必须为lettuce或jedis, 当前为" + client);
+        check(topology.equals("standalone") || topology.equals("cluster") || topology.equals("sharded"),
+                "retwis.redis.topology必须为standalone, cluster或sharded, 当前为" + topology);
+        // 0在lettuce和jedis中都表示不超时, 访问redis的线程可能被一直阻塞
+        check(timeoutMillis > 0, "retwis.redis.timeout-millis必须大于0, 当前为" + timeoutMillis);
+        check(connectTimeoutMillis > 0, "retwis.redis.connect-timeout-millis必须大于0, 当前为" + connectTimeoutMillis);
+        // jedis的消息订阅会一直占用一个连接
+        check(maxActive >= 2, "retwis.redis.pool.max-active必须不小于2, 当前为" + maxActive);
+        check(maxIdle >= 0 && maxIdle <= maxActive,
+                "retwis.redis.pool.max-idle必须在0和max-active之间, 当前为" + maxIdle);
+        check(minIdle >= 0 && minIdle <= maxIdle,
+                "retwis.redis.pool.min-idle必须在0和max-idle之间, 当前为" + minIdle);
+        check(maxWaitMillis == -1 || maxWaitMillis > 0,
+                "retwis.redis.pool.max-wait-millis必须大于0或者为-1, 当前为" + maxWaitMillis);
+        if (client.equals("jedis")) {
+            check(!reactiveEnabled, "响应式服务需要lettuce客户端, 请设置retwis.redis.client=lettuce");
+        }
+        if (topology.equals("cluster")) {
+            check(client.equals("lettuce"), "cluster模式需要lettuce客户端, jedis的cluster连接不支持pipeline");
+            check(redisProperties.getCluster() != null && !redisProperties.getCluster().getNodes().isEmpty(),
+                    "cluster模式需要设置spring.redis.cluster.nodes");
+        }
+        if (topology.equals("sharded")) {
+            check(!this.shards.isEmpty(), "分片模式需要设置retwis.redis.shards");
+            check(new HashSet<>(this.shards).size() == this.shards.size(), "retwis.redis.shards中有重复的分片");
+            for (String shard : this.shards) {
+                check(shard.matches(".+:\\d+"), "retwis.redis.shards中的分片必须为host:port, 当前为" + shard);
+            }
+            check(!reactiveEnabled, "响应式服务不支持分片模式");
+        }
+    }
+
+    /**
+     * 订阅redis频道的监听容器,用于各节点之间同步缓存
+     * @param connectionFactory
+     * @return
+     */
+    @Bean
+    public RedisMessageListenerContainer redisMessageListenerContainer(RedisConnectionFactory connectionFactory) {
+        RedisMessageListenerContainer container = new RedisMessageListenerContainer();
+        container.setConnectionFactory(connectionFactory);
+        return container;
+    }
+
+    /**
+     * 共用连接的lettuce客户端, 独占连接从连接池借出, 同时提供响应式连接
+     * @param redisProperties spring.redis.*中的地址, 数据库和密码
+     * @return
+     */
+    @Bean
+    @ConditionalOnExpression(LETTUCE + " && " + NOT_SHARDED)
+    public LettuceConnectionFactory redisConnectionFactory(RedisProperties redisProperties) {
+        LettuceConnectionFactory factory = topology.equals("cluster")
+                ? new LettuceConnectionFactory(cluster(redisProperties), lettuceConfiguration())
+                : new LettuceConnectionFactory(standalone(redisProperties), lettuceConfiguration());
+        factory.setShareNativeConnection(true);
+        log.info("redis客户端: lettuce, {}, 共用连接, 独占连接池最大{}个连接, 命令超时{}ms",
+                topology, maxActive, timeoutMillis);
+        return factory;
+    }
+
+    /**
+     * 使用连接池的jedis客户端
+     * @param redisProperties spring.redis.*中的地址, 数据库和密码
+     * @return
+     */
+    @Bean
+    @ConditionalOnExpression(JEDIS + " && " + NOT_SHARDED)
+    public JedisConnectionFactory jedisConnectionFactory(RedisProperties redisProperties) {
+        log.info("redis客户端: jedis, 连接池最大{}个连接, 等待{}ms", maxActive, maxWaitMillis);
+        return new JedisConnectionFactory(standalone(redisProperties), jedisConfiguration());
+    }
+
+    /**
+     * 客户端分片, 每个分片使用retwis.redis.client选择的客户端
+     * @param redisProperties spring.redis.*中的数据库和密码, 所有分片相同
+     * @return
+     */
+    @Bean
+    @ConditionalOnProperty(name = "retwis.redis.topology", havingValue = "sharded")
+    public ShardedConnectionFactory shardedConnectionFactory(RedisProperties redisProperties) {
+        List<RedisConnectionFactory> factories = new ArrayList<>(shards.size());
+        for (String shard : shards) {
+            int colon = shard.lastIndexOf(':');
+            RedisStandaloneConfiguration configuration = standalone(redisProperties);
+            configuration.setHostName(shard.substring(0, colon));
+            configuration.setPort(Integer.parseInt(shard.substring(colon + 1)));
+            if (client.equals("jedis")) {
+                factories.add(new JedisConnectionFactory(configuration, jedisConfiguration()));
+            } else {
+                LettuceConnectionFactory factory = new LettuceConnectionFactory(configuration, lettuceConfiguration());
+                factory.setShareNativeConnection(true);
+                factories.add(factory);
+            }
+        }
+        log.info("redis客户端: {}, 分片{}", client, shards);
+        return new ShardedConnectionFactory(shards, factories);
+    }
+
+    /**
+     * lettuce的配置, 共用连接之外的独占连接使用连接池
+     *   没有连接池时LettuceConnectionFactory每次executePipelined都新建并关闭一个tcp连接
+     * @return
+     */
+    private LettuceClientConfiguration lettuceConfiguration() {
+        return LettucePoolingClientConfiguration.builder()
+                .poolConfig(poolConfig(new GenericObjectPoolConfig<>()))
+                .commandTimeout(Duration.ofMillis(timeoutMillis))
+                .clientOptions(ClientOptions.builder()
+                        .socketOptions(SocketOptions.builder()
+                                .connectTimeout(Duration.ofMillis(connectTimeoutMillis))
+                                .build())
+                        .build())
+                .build();
+    }
+
+    private JedisClientConfiguration jedisConfiguration() {
+        return JedisClientConfiguration.builder()
+                .connectTimeout(Duration.ofMillis(connectTimeoutMillis))
+                .readTimeout(Duration.ofMillis(timeoutMillis))
+                .usePooling()
+                .poolConfig(poolConfig(new JedisPoolConfig()))
+                .build();
+    }
+
+    private <T extends GenericObjectPoolConfig<?>> T poolConfig(T poolConfig) {
+        poolConfig.setMaxTotal(maxActive);
+        poolConfig.setMaxIdle(maxIdle);
+        poolConfig.setMinIdle(minIdle);
+        poolConfig.setMaxWaitMillis(maxWaitMillis);
+        return poolConfig;
+    }
+
+    private static RedisStandaloneConfiguration standalone(RedisProperties redisProperties) {
+        RedisStandaloneConfiguration configuration =
+                new RedisStandaloneConfiguration(redisProperties.getHost(), redisProperties.getPort());
+        configuration.setDatabase(redisProperties.getDatabase());
+        configuration.setPassword(RedisPassword.of(redisProperties.getPassword()));
+        return configuration;
+    }
+
+    private static RedisClusterConfiguration cluster(RedisProperties redisProperties) {
+        RedisClusterConfiguration configuration =
+                new RedisClusterConfiguration(redisProperties.getCluster().getNodes());
+        if (redisProperties.getCluster().getMaxRedirects() != null) {
+            configuration.setMaxRedirects(redisProperties.getCluster().getMaxRedirects());
+        }
+        configuration.setPassword(RedisPassword.of(redisProperties.getPassword()));
+        return configuration;
+    }
+
+    private static void check(boolean condition, String message) {
+        if (!condition) {
+            throw new IllegalStateException(message);
+        }
+    }
+}
@@ -0,0 +1,335 @@
+package retwis.config;
+
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.dao.DataAccessException;
+import org.springframework.dao.InvalidDataAccessApiUsageException;
+import org.springframework.data.redis.connection.RedisClusterConnection;
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.connection.RedisConnectionFactory;
+import org.springframework.data.redis.connection.RedisSentinelConnection;
+import retwis.util.ConsistentHash;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * 客户端分片的redis连接
+ *   把多个独立的redis实例当作一个redis使用, 按键的hash tag在一致性哈希环上选择分片.
+ *   返回的连接把每条命令转发到键所在分片的连接, 各分片的连接在第一次用到时打开:
+ *     带键的命令按第一个参数路由; 脚本按KEYS路由, KEYS需要在同一个分片;
+ *     MGET, DEL等多键命令按分片拆分后合并结果, 在pipeline中只能访问同一个分片的键;
+ *     发布订阅, SCAN等不带键的命令由第一个分片处理; 不支持事务.
+ *   pipeline在每个用到的分片上分别开启, 关闭时按命令的顺序合并各分片的结果;
+ *   分片返回的结果数与记录的不一致时(STATUS_COMMANDS与客户端的实现不符)报错, 而不是错位合并.
+ */
+public class ShardedConnectionFactory implements RedisConnectionFactory, InitializingBean, DisposableBean {
+
+    // pipeline中不返回结果的命令, 与lettuce和jedis的实现相同, 升级spring data redis时由ShardedConnectionFactoryTests检查
+    private static final Set<String> STATUS_COMMANDS = new HashSet<>(Arrays.asList(
+            "hMSet", "setRange", "rename", "restore", "lSet", "lTrim", "select", "watch", "unwatch", "discard"));
+
+    // 可以按分片拆分的多键命令, 结果为列表(mGet)或数量之和
+    private static final Set<String> MULTI_KEY_COMMANDS = new HashSet<>(Arrays.asList(
+            "mGet", "del", "unlink", "exists", "touch"));
+
+    private static final Set<String> TRANSACTION_COMMANDS = new HashSet<>(Arrays.asList(
+            "multi", "exec", "discard", "watch", "unwatch"));
+
+    private final List<RedisConnectionFactory> shards;
+    private final ConsistentHash ring;
+
+    /**
+     * @param names 分片名称, 决定分片在哈希环上的位置, 通常为host:port
+     * @param shards 与names一一对应的连接工厂
+     */
+    public ShardedConnectionFactory(List<String> names, List<? extends RedisConnectionFactory> shards) {
+        this.shards = new ArrayList<>(shards);
+        this.ring = new ConsistentHash(names);
+    }
+
+    @Override
+    public void afterPropertiesSet() throws Exception {
+        for (RedisConnectionFactory shard : shards) {
+            if (shard instanceof InitializingBean) {
+                ((InitializingBean) shard).afterPropertiesSet();
+            }
+        }
+    }
+
+    @Override
+    public void destroy() throws Exception {
+        for (RedisConnectionFactory shard : shards) {
+            if (shard instanceof DisposableBean) {
+                ((DisposableBean) shard).destroy();
+            }
+        }
+    }
+
+    @Override
+    public RedisConnection getConnection() {
+        return (RedisConnection) Proxy.newProxyInstance(RedisConnection.class.getClassLoader(),
+                new Class<?>[]{RedisConnection.class}, new ShardedConnection());
+    }
+
+    @Override
+    public RedisClusterConnection getClusterConnection() {
+        throw new InvalidDataAccessApiUsageException("分片模式不是redis cluster");
+    }
+
+    @Override
+    public boolean getConvertPipelineAndTxResults() {
+        return shards.get(0).getConvertPipelineAndTxResults();
+    }
+
+    @Override
+    public RedisSentinelConnection getSentinelConnection() {
+        throw new InvalidDataAccessApiUsageException("分片模式不支持sentinel");
+    }
+
+    @Override
+    public DataAccessException translateExceptionIfPossible(RuntimeException ex) {
+        return shards.get(0).translateExceptionIfPossible(ex);
+    }
+
+    private class ShardedConnection implements InvocationHandler {
+
+        // 各分片的连接, 用到时打开
+        private final RedisConnection[] connections = new RedisConnection[shards.size()];
+        private boolean closed;
+        // pipeline中每个结果所在的分片, 不在pipeline中时为null; 每个连接同时只被一个线程使用
+        private List<Integer> pipeline;
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+            switch (name) {
+                case "close":
+                    close();
+                    return null;
+                case "isClosed":
+                    return closed;
+                case "isPipelined":
+                    return pipeline != null;
+                case "isQueueing":
+                    return false;
+                case "openPipeline":
+                    if (pipeline == null) {
+                        pipeline = new ArrayList<>();
+                    }
+                    return null;
+                case "closePipeline":
+                    return closePipeline();
+                case "getNativeConnection":
+                    return connection(0).getNativeConnection();
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "toString":
+                    return "ShardedConnection" + Arrays.toString(connections);
+                default:
+                    break;
+            }
+            if (TRANSACTION_COMMANDS.contains(name)) {
+                throw new InvalidDataAccessApiUsageException("分片模式不支持事务");
+            }
+            // keyCommands()等返回连接自身, 命令仍然经过路由
+            if (name.endsWith("Commands") && method.getParameterCount() == 0) {
+                return proxy;
+            }
+            if (MULTI_KEY_COMMANDS.contains(name) && args.length == 1 && args[0] instanceof byte[][]) {
+                return multiKey(method, (byte[][]) args[0]);
+            }
+            return invoke(shard(name, args), method, args);
+        }
+
+        /**
+         * 在一个分片上执行命令, pipeline中记录结果所在的分片
+         */
+        private Object invoke(int shard, Method method, Object[] args) throws Throwable {
+            RedisConnection connection = connection(shard);
+            if (pipeline != null) {
+                if (!connection.isPipelined()) {
+                    connection.openPipeline();
+                }
+                if (!STATUS_COMMANDS.contains(method.getName())) {
+                    pipeline.add(shard);
+                }
+            }
+            try {
+                return method.invoke(connection, args);
+            } catch (InvocationTargetException e) {
+                throw e.getTargetException();
+            }
+        }
+
+        /**
+         * 命令所在的分片
+         * @param name
+         * @param args
+         * @return
+         */
+        private int shard(String name, Object[] args) {
+            if (args == null || args.length == 0 || name.equals("publish")) {
+                return 0;
+            }
+            if (name.equals("eval") || name.equals("evalSha")) {
+                // (script, returnType, numKeys, keysAndArgs)
+                int numKeys = (Integer) args[2];
+                byte[][] keysAndArgs = (byte[][]) args[3];
+                if (numKeys == 0) {
+                    return 0;
+                }
+                int shard = ring.node(keysAndArgs[0]);
+                for (int i = 1; i < numKeys; i++) {
+                    if (ring.node(keysAndArgs[i]) != shard) {
+                        throw new InvalidDataAccessApiUsageException("脚本的KEYS不在同一个分片");
+                    }
+                }
+                return shard;
+            }
+            if (name.equals("execute") && args.length == 2 && args[1] instanceof byte[][]) {
+                byte[][] commandArgs = (byte[][]) args[1];
+                return commandArgs.length == 0 ? 0 : ring.node(commandArgs[0]);
+            }
+            return args[0] instanceof byte[] ? ring.node((byte[]) args[0]) : 0;
+        }
+
+        /**
+         * 多键命令按分片拆分执行
+         * @param method
+         * @param keys
+         * @return mGet按keys的顺序返回值, 其他命令返回各分片结果之和
+         */
+        private Object multiKey(Method method, byte[][] keys) throws Throwable {
+            List<List<Integer>> byShard = new ArrayList<>(shards.size());
+            for (int i = 0; i < shards.size(); i++) {
+                byShard.add(new ArrayList<>());
+            }
+            int used = 0;
+            for (int i = 0; i < keys.length; i++) {
+                List<Integer> indexes = byShard.get(ring.node(keys[i]));
+                if (indexes.isEmpty()) {
+                    used++;
+                }
+                indexes.add(i);
+            }
+            if (used <= 1) {
+                return invoke(keys.length == 0 ? 0 : ring.node(keys[0]), method, new Object[]{keys});
+            }
+            if (pipeline != null) {
+                throw new InvalidDataAccessApiUsageException("pipeline中的" + method.getName() + "不能跨分片");
+            }
+            boolean mGet = method.getName().equals("mGet");
+            Object[] values = new Object[keys.length];
+            long count = 0;
+            for (int shard = 0; shard < shards.size(); shard++) {
+                List<Integer> indexes = byShard.get(shard);
+                if (indexes.isEmpty()) {
+                    continue;
+                }
+                byte[][] subset = new byte[indexes.size()][];
+                for (int i = 0; i < subset.length; i++) {
+                    subset[i] = keys[indexes.get(i)];
+                }
+                Object result = invoke(shard, method, new Object[]{subset});
+                if (mGet) {
+                    List<?> list = (List<?>) result;
+                    for (int i = 0; i < subset.length; i++) {
+                        values[indexes.get(i)] = list.get(i);
+                    }
+                } else if (result != null) {
+                    count += ((Number) result).longValue();
+                }
+            }
+            return mGet ? Arrays.asList(values) : count;
+        }
+
+        /**
+         * 关闭各分片的pipeline, 按命令的顺序合并结果
+         *   某个分片出错时仍然关闭其他分片的pipeline, 然后抛出第一个异常
+         */
+        private List<Object> closePipeline() {
+            List<Integer> order = pipeline;
+            pipeline = null;
+            if (order == null) {
+                return new ArrayList<>();
+            }
+            int[] expected = new int[shards.size()];
+            for (int shard : order) {
+                expected[shard]++;
+            }
+            List<Iterator<Object>> results = new ArrayList<>(shards.size());
+            RuntimeException error = null;
+            for (int shard = 0; shard < connections.length; shard++) {
+                RedisConnection connection = connections[shard];
+                Iterator<Object> result = null;
+                if (connection != null && connection.isPipelined()) {
+                    try {
+                        List<Object> list = connection.closePipeline();
+                        if (list.size() != expected[shard]) {
+                            throw new InvalidDataAccessApiUsageException("分片" + shard + "的pipeline返回"
+                                    + list.size() + "个结果, 应为" + expected[shard] + "个, 请检查STATUS_COMMANDS");
+                        }
+                        result = list.iterator();
+                    } catch (RuntimeException e) {
+                        if (error == null) {
+                            error = e;
+                        }
+                    }
+                }
+                results.add(result);
+            }
+            if (error != null) {
+                throw error;
+            }
+            List<Object> merged = new ArrayList<>(order.size());
+            for (int shard : order) {
+                merged.add(results.get(shard).next());
+            }
+            return merged;
+        }
+
+        private RedisConnection connection(int shard) {
+            if (closed) {
+                throw new InvalidDataAccessApiUsageException("连接已关闭");
+            }
+            if (connections[shard] == null) {
+                connections[shard] = shards.get(shard).getConnection();
+            }
+            return connections[shard];
+        }
+
+        private void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            RuntimeException error = null;
+            for (RedisConnection connection : connections) {
+                if (connection == null) {
+                    continue;
+                }
+                try {
+                    connection.close();
+                } catch (RuntimeException e) {
+                    if (error == null) {
+                        error = e;
+                    }
+                }
+            }
+            if (error != null) {
+                throw error;
+            }
+        }
+    }
+}
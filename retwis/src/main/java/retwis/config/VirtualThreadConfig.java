@@ -0,0 +1,55 @@
+package retwis.config;
+
+import lombok.extern.slf4j.Slf4j;
+import org.apache.coyote.ProtocolHandler;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.web.embedded.tomcat.TomcatProtocolHandlerCustomizer;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import java.lang.reflect.InvocationTargetException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * 在虚拟线程上处理请求(JDK 21及以上)
+ *   tomcat的工作线程池换成每个请求一个虚拟线程, 等待redis时不占用平台线程,
+ *   并发请求数不再受线程数限制, 改由ConcurrencyLimitInterceptor按redis的承受能力限制.
+ *   项目按JDK 8编译, 通过反射创建虚拟线程的executor.
+ *   redis访问路径上的锁都是ReentrantLock, lettuce等待结果使用CompletableFuture, 不会把虚拟线程固定在平台线程上.
+ */
+@Slf4j
+@Configuration
+@ConditionalOnProperty(name = "retwis.virtual-threads.enabled", havingValue = "true")
+public class VirtualThreadConfig {
+
+    /**
+     * 每个任务一个虚拟线程的executor
+     * @return
+     */
+    @Bean(name = "virtualThreadExecutor", destroyMethod = "shutdown")
+    public ExecutorService virtualThreadExecutor() {
+        try {
+            ExecutorService executor = (ExecutorService) Executors.class
+                    .getMethod("newVirtualThreadPerTaskExecutor")
+                    .invoke(null);
+            log.info("使用虚拟线程处理请求");
+            return executor;
+        } catch (NoSuchMethodException e) {
+            throw new IllegalStateException("虚拟线程需要JDK 21及以上版本, 当前为" + System.getProperty("java.version"), e);
+        } catch (IllegalAccessException | InvocationTargetException e) {
+            throw new IllegalStateException("无法创建虚拟线程executor", e);
+        }
+    }
+
+    /**
+     * tomcat使用虚拟线程executor处理请求
+     * @param virtualThreadExecutor
+     * @return
+     */
+    @Bean
+    public TomcatProtocolHandlerCustomizer<ProtocolHandler> virtualThreadProtocolHandlerCustomizer(
+            ExecutorService virtualThreadExecutor) {
+        return protocolHandler -> protocolHandler.setExecutor(virtualThreadExecutor);
+    }
+}
@@ -0,0 +1,32 @@
+package retwis.config;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.web.servlet.config.annotation.InterceptorRegistry;
+import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
+import retwis.web.ConcurrencyLimitInterceptor;
+import retwis.web.RedisBudgetInterceptor;
+
+/**
+ * web配置
+ */
+@Configuration
+public class WebConfig implements WebMvcConfigurer {
+
+    private final ConcurrencyLimitInterceptor concurrencyLimitInterceptor;
+    private final RedisBudgetInterceptor redisBudgetInterceptor;
+
+    @Autowired
+    public WebConfig(ConcurrencyLimitInterceptor concurrencyLimitInterceptor,
+                     RedisBudgetInterceptor redisBudgetInterceptor) {
+        this.concurrencyLimitInterceptor = concurrencyLimitInterceptor;
+        this.redisBudgetInterceptor = redisBudgetInterceptor;
+    }
+
+    @Override
+    public void addInterceptors(InterceptorRegistry registry) {
+        // 先取得许可, 等待许可的时间不计入redis统计
+        registry.addInterceptor(concurrencyLimitInterceptor);
+        registry.addInterceptor(redisBudgetInterceptor);
+    }
+}
@@ -0,0 +1,209 @@
+package retwis.dao;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.redis.core.Cursor;
+import org.springframework.data.redis.core.ScanOptions;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.stereotype.Component;
+import retwis.util.KeyUtils;
+import retwis.util.ScriptUtils;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 用户键名到hash tag键名的迁移
+ *   旧版本的用户键没有hash tag(user:1, uid:1:posts, followers:1:uid ...), 新版本改为user:{1}, uid:{1}:posts ...
+ *   与ZSetMigrator相同, 应用启动后在后台线程用SCAN分批改名, 期间应用照常提供服务:
+ *   迁移完成前, 每次操作都会先确保用到的旧键已改名(一次往返), 新键创建后旧键不会再出现;
+ *   迁移可能由其他节点完成, 因此与ZSetMigrator相同, 每秒最多检查一次完成标记.
+ *   旧版本的节点只写旧键, 升级前必须停止所有旧版本的节点, 不能滚动升级:
+ *     新旧键同时存在说明仍有旧版本的节点在写入, 改名的脚本会报错, 而不是丢弃旧键中的写入.
+ *   改名要求新旧键在同一个redis中, 只能在单机模式下进行; 迁移完成后才能切换到cluster或分片模式.
+ */
+@Slf4j
+@Component
+public class HashTagMigrator {
+
+    // 检查迁移完成标记的最小间隔
+    private static final long MARKER_CHECK_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private static final RedisScript<Long> RENAME_USER_KEYS =
+            ScriptUtils.load("scripts/rename_user_keys.lua", Long.class);
+
+    private final StringRedisTemplate template;
+
+    // 是否在启动后执行后台迁移
+    private final boolean enabled;
+    // 每批改名的键数量
+    private final int batchSize;
+    // 每批之间的停顿,避免迁移占用过多redis资源
+    private final long pauseMillis;
+    // 是否为单机模式
+    private final boolean standalone;
+
+    // 迁移是否已完成
+    private volatile boolean migrated;
+    private final CountDownLatch done = new CountDownLatch(1);
+    // 上次检查完成标记的时间
+    private volatile long markerCheckedAt = System.nanoTime();
+
+    @Autowired
+    public HashTagMigrator(StringRedisTemplate template,
+                           @Value("${retwis.migration.enabled:true}") boolean enabled,
+                           @Value("${retwis.migration.batch-size:100}") int batchSize,
+                           @Value("${retwis.migration.pause-millis:50}") long pauseMillis,
+                           @Value("${retwis.redis.topology:standalone}") String topology) {
+        this.template = template;
+        this.enabled = enabled;
+        this.batchSize = batchSize;
+        this.pauseMillis = pauseMillis;
+        this.standalone = "standalone".equals(topology);
+    }
+
+    /**
+     * 应用启动后开始迁移
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void start() {
+        if (Boolean.TRUE.equals(template.hasKey(KeyUtils.hashTagsMigrated()))) {
+            migrated = true;
+            done.countDown();
+            return;
+        }
+        if (!standalone && !Boolean.TRUE.equals(template.hasKey(KeyUtils.globalUid()))) {
+            // 还没有注册过用户的新部署, 没有需要迁移的键
+            template.opsForValue().set(KeyUtils.hashTagsMigrated(), String.valueOf(System.currentTimeMillis()));
+            migrated = true;
+            done.countDown();
+            return;
+        }
+        if (!standalone) {
+            throw new IllegalStateException("用户键的hash tag迁移未完成, 请先在单机redis上完成迁移再切换到cluster或分片模式");
+        }
+        if (!enabled) {
+            return;
+        }
+        Thread thread = new Thread(this::migrate, "hash-tag-migrator");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * 确保用户键的旧键已经改名, 所有键一次往返
+     * @param keys 新键名
+     */
+    public void ensure(Collection<String> keys) {
+        if (migrated || markerExists()) {
+            return;
+        }
+        List<String> pairs = new ArrayList<>(keys.size() * 2);
+        for (String key : keys) {
+            pairs.add(KeyUtils.legacyUserKey(key));
+            pairs.add(key);
+        }
+        rename(pairs);
+    }
+
+    /**
+     * 距上次检查超过MARKER_CHECK_NANOS时重新读取完成标记, 并发的调用只有一个会读取
+     * @return 标记是否存在
+     */
+    private boolean markerExists() {
+        long checkedAt = markerCheckedAt;
+        long now = System.nanoTime();
+        if (now - checkedAt < MARKER_CHECK_NANOS) {
+            return false;
+        }
+        synchronized (this) {
+            if (markerCheckedAt != checkedAt) {
+                return migrated;
+            }
+            markerCheckedAt = now;
+        }
+        if (Boolean.TRUE.equals(template.hasKey(KeyUtils.hashTagsMigrated()))) {
+            migrated = true;
+            done.countDown();
+            log.info("hash tag迁移已完成, 不再逐个改名");
+        }
+        return migrated;
+    }
+
+    /**
+     * 等待迁移完成, 其他依赖新键名的迁移需要在此之后进行
+     * @throws InterruptedException
+     */
+    public void awaitMigrated() throws InterruptedException {
+        done.await();
+    }
+
+    /**
+     * 用SCAN遍历所有旧版本的用户键,分批改名
+     */
+    private void migrate() {
+        long renamed = 0;
+        try {
+            for (String pattern : KeyUtils.legacyUserPatterns()) {
+                renamed += migrate(pattern);
+            }
+            template.opsForValue().set(KeyUtils.hashTagsMigrated(), String.valueOf(System.currentTimeMillis()));
+            migrated = true;
+            done.countDown();
+            log.info("hash tag迁移完成, 共改名{}个键", renamed);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            log.error("hash tag迁移失败, 已改名{}个键", renamed, e);
+        }
+    }
+
+    private long migrate(String pattern) throws Exception {
+        ScanOptions options = ScanOptions.scanOptions()
+                .match(pattern)
+                .count(batchSize)
+                .build();
+        long renamed = 0;
+        try (Cursor<byte[]> cursor = template.executeWithStickyConnection(
+                connection -> connection.scan(options))) {
+            List<String> pairs = new ArrayList<>(batchSize * 2);
+            while (cursor.hasNext()) {
+                String key = new String(cursor.next(), StandardCharsets.UTF_8);
+                String tagged = KeyUtils.taggedUserKey(key);
+                if (tagged == null) {
+                    continue;
+                }
+                pairs.add(key);
+                pairs.add(tagged);
+                if (pairs.size() == batchSize * 2) {
+                    renamed += rename(pairs);
+                    pairs.clear();
+                    Thread.sleep(pauseMillis);
+                }
+            }
+            renamed += rename(pairs);
+        }
+        return renamed;
+    }
+
+    /**
+     * 改名一批键
+     * @param pairs 旧键名和新键名交替排列
+     * @return 实际改名的键数量
+     */
+    private long rename(List<String> pairs) {
+        if (pairs.isEmpty()) {
+            return 0;
+        }
+        Long n = template.execute(RENAME_USER_KEYS, pairs);
+        return n == null ? 0 : n;
+    }
+}
@@ -0,0 +1,76 @@
+package retwis.dao;
+
+import org.springframework.data.redis.core.StringRedisTemplate;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 按块分配id
+ *   每次用INCRBY从redis租用一整块id, 在本地依次分配,
+ *   当前块剩余不足1/10时在后台预先租用下一块, 分配id基本不需要访问redis.
+ *   应用重启时未用完的id会被跳过, id只保证唯一和递增, 不保证连续.
+ */
+public class IdAllocator {
+
+    private final StringRedisTemplate template;
+    // 计数器的键
+    private final String key;
+    // 每次租用的id数量
+    private final long blockSize;
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    // 当前块中下一个可分配的id
+    private long next = 1;
+    // 当前块的最后一个id
+    private long end = 0;
+    // 正在预先租用的下一块, 结果为该块的最后一个id
+    private CompletableFuture<Long> prefetch;
+
+    public IdAllocator(StringRedisTemplate template, String key, long blockSize) {
+        this.template = template;
+        this.key = key;
+        this.blockSize = blockSize;
+    }
+
+    /**
+     * 分配一个id
+     * @return
+     */
+    public long next() {
+        lock.lock();
+        try {
+            if (next > end) {
+                long blockEnd = prefetch != null ? takePrefetch() : lease();
+                next = blockEnd - blockSize + 1;
+                end = blockEnd;
+            }
+            long id = next++;
+            if (prefetch == null && end - next < blockSize / 10) {
+                prefetch = CompletableFuture.supplyAsync(this::lease);
+            }
+            return id;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 取出预先租用的块,预先租用失败时重新租用
+     * @return 块的最后一个id
+     */
+    private long takePrefetch() {
+        CompletableFuture<Long> future = prefetch;
+        prefetch = null;
+        try {
+            return future.join();
+        } catch (RuntimeException e) {
+            return lease();
+        }
+    }
+
+    private long lease() {
+        return template.opsForValue().increment(key, blockSize);
+    }
+}
@@ -0,0 +1,167 @@
+package retwis.dao;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+import retwis.util.KeyUtils;
+
+import javax.annotation.PreDestroy;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 定时把旧帖子从redis移到本地归档
+ *   超过保留时长, 或者不在全局最新的若干个帖子之内的帖子会被归档,
+ *   redis中只保留最常被读到的新帖子.
+ *   归档保存在本地磁盘, 帖子信息从redis删除后只有归档所在的节点能读到, 因此归档只支持单节点部署:
+ *     开启归档时必须配置节点的标识(retwis.archive.node-id), 不随主机名或目录变化, 重新部署时保持不变;
+ *     第一次归档前在redis中记录归档所在的节点, 之后开启归档的其他节点启动时发现归档不在本地会启动失败,
+ *     未开启归档的节点只记录警告;
+ *     有其他节点正在运行(持有帖子id的节点号租约)时跳过归档.
+ *   共享归档目录也不能解决这个问题: 其他节点只在启动时建立归档的索引, 读不到之后追加的帖子.
+ */
+@Slf4j
+@Component
+public class PostArchiver {
+
+    private final UserDao userDao;
+    private final StringRedisTemplate template;
+    // 用于检查其他节点是否正在运行
+    private final PostIdGenerator postIds;
+    // 本节点的标识
+    private final String nodeId;
+
+    // 是否开启归档
+    private final boolean enabled;
+    // 帖子在redis中保留的时长, 为0时不按时间归档
+    private final long maxAgeMillis;
+    // 全局帖子列表中保留的最新帖子数, 为0时不按数量归档
+    private final int keepRecent;
+    // 两次归档之间的间隔
+    private final long intervalMillis;
+    // 每批归档的帖子数
+    private final int batchSize;
+
+    private final Counter archived;
+    private ScheduledExecutorService scheduler;
+
+    @Autowired
+    public PostArchiver(UserDao userDao,
+                        StringRedisTemplate template,
+                        PostIdGenerator postIds,
+                        MeterRegistry meterRegistry,
+                        @Value("${retwis.archive.node-id:}") String nodeId,
+                        @Value("${retwis.archive.enabled:false}") boolean enabled,
+                        @Value("${retwis.archive.max-age-millis:2592000000}") long maxAgeMillis,
+                        @Value("${retwis.archive.keep-recent:100000}") int keepRecent,
+                        @Value("${retwis.archive.interval-millis:60000}") long intervalMillis,
+                        @Value("${retwis.archive.batch-size:500}") int batchSize) {
+        this.userDao = userDao;
+        this.template = template;
+        this.postIds = postIds;
+        if (enabled && nodeId.isEmpty()) {
+            throw new IllegalStateException("开启归档时必须配置retwis.archive.node-id");
+        }
+        this.nodeId = nodeId;
+        this.enabled = enabled;
+        this.maxAgeMillis = maxAgeMillis;
+        this.keepRecent = keepRecent;
+        this.intervalMillis = intervalMillis;
+        this.batchSize = batchSize;
+        this.archived = meterRegistry.counter("retwis.archive.archived");
+    }
+
+    /**
+     * 应用启动后检查归档是否在本节点, 开启时开始定时归档
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void start() {
+        String owner = template.opsForValue().get(KeyUtils.archiveOwner());
+        if (!enabled) {
+            if (owner != null) {
+                log.warn("部分帖子已归档在节点{}的本地目录中, 本节点未开启归档, 读不到这些帖子", owner);
+            }
+            return;
+        }
+        if (owner != null && !owner.equals(nodeId)) {
+            throw new IllegalStateException("部分帖子已归档在节点" + owner + "的本地目录中, 本节点(" + nodeId
+                    + ")读不到这些帖子; 归档只支持单节点部署. 如果归档目录已经迁移到本节点, 把retwis.archive.node-id设为"
+                    + owner + ", 或者在redis中执行 SET " + KeyUtils.archiveOwner() + " " + nodeId);
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "post-archiver");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(this::archive, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void stop() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+        }
+    }
+
+    /**
+     * 归档所有满足条件的帖子
+     */
+    private void archive() {
+        long total = 0;
+        try {
+            if (!singleNode()) {
+                log.warn("有其他节点正在运行, 跳过归档; 归档只支持单节点部署");
+                return;
+            }
+            long cutoff = cutoff();
+            int n;
+            while (cutoff >= 0 && (n = userDao.archivePosts(cutoff, batchSize)) > 0) {
+                total += n;
+                archived.increment(n);
+            }
+            if (total > 0) {
+                log.info("归档了{}个帖子", total);
+            }
+        } catch (Exception e) {
+            log.error("归档帖子失败, 已归档{}个帖子", total, e);
+        }
+    }
+
+    /**
+     * 是否只有本节点在运行, 并记录归档所在的节点
+     *   先记录再检查, 检查之后启动的节点会因为归档不在本地而启动失败
+     * @return
+     */
+    private boolean singleNode() {
+        if (postIds.hasOtherWorkers()) {
+            return false;
+        }
+        if (!Boolean.TRUE.equals(template.opsForValue().setIfAbsent(KeyUtils.archiveOwner(), nodeId))
+                && !nodeId.equals(template.opsForValue().get(KeyUtils.archiveOwner()))) {
+            return false;
+        }
+        return !postIds.hasOtherWorkers();
+    }
+
+    /**
+     * 可以归档的最大帖子id
+     * @return 没有需要归档的帖子时返回-1
+     */
+    private long cutoff() {
+        long cutoff = -1;
+        if (maxAgeMillis > 0) {
+            cutoff = PostIdGenerator.maxIdBefore(System.currentTimeMillis() - maxAgeMillis);
+        }
+        if (keepRecent > 0) {
+            cutoff = Math.max(cutoff, userDao.archiveCutoff(keepRecent));
+        }
+        return cutoff;
+    }
+}
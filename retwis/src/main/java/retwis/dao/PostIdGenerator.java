@@ -0,0 +1,213 @@
+package retwis.dao;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.stereotype.Component;
+import retwis.util.KeyUtils;
+import retwis.util.ScriptUtils;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 按时间有序的帖子id生成器(类似snowflake)
+ *   id = 毫秒时间戳(41位) | 节点号(5位) | 序号(7位), 共53位,
+ *   可以精确地作为sorted set的分数, 也能按id比较帖子的新旧.
+ *   节点号在启动时从redis租用, 运行期间定时续约, 最多同时运行32个节点.
+ *   续约用脚本比较租约标识后延长, 不会延长其他节点的租约. 租约到期前没有续约成功时(如redis不可用, 长时间GC),
+ *   其他节点可能已经租用了同一个节点号, 此时next()抛出异常, 不再生成帖子id, 直到重新租用到节点号.
+ */
+@Slf4j
+@Component
+public class PostIdGenerator {
+
+    // 时间戳起点 2020-01-01T00:00:00Z
+    private static final long EPOCH = 1577836800000L;
+    private static final int WORKER_BITS = 5;
+    private static final int SEQUENCE_BITS = 7;
+    private static final int MAX_WORKERS = 1 << WORKER_BITS;
+    private static final long SEQUENCE_MASK = (1L << SEQUENCE_BITS) - 1;
+
+    private static final RedisScript<Long> RENEW_WORKER = ScriptUtils.load("scripts/renew_worker.lua", Long.class);
+    private static final RedisScript<Long> RELEASE_WORKER = ScriptUtils.load("scripts/release_worker.lua", Long.class);
+
+    private final StringRedisTemplate template;
+    // 节点号租约时长
+    private final long leaseMillis;
+    // 本节点的租约标识
+    private final String token = UUID.randomUUID().toString();
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private ScheduledExecutorService renewer;
+
+    private int workerId = -1;
+    // 租约的本地到期时间(System.nanoTime), 从发出续约请求时算起, 不晚于redis中的过期时间
+    private long leaseDeadline;
+    private long lastTimestamp = -1;
+    private long sequence;
+
+    @Autowired
+    public PostIdGenerator(StringRedisTemplate template,
+                           @Value("${retwis.id.worker-lease-millis:30000}") long leaseMillis) {
+        this.template = template;
+        this.leaseMillis = leaseMillis;
+    }
+
+    /**
+     * 租用节点号并定时续约
+     */
+    @PostConstruct
+    public void start() {
+        if (!lease()) {
+            throw new IllegalStateException("没有可用的节点号, 最多同时运行" + MAX_WORKERS + "个节点");
+        }
+        renewer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "worker-lease");
+            thread.setDaemon(true);
+            return thread;
+        });
+        renewer.scheduleAtFixedRate(this::renew, leaseMillis / 3, leaseMillis / 3, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void stop() {
+        if (renewer != null) {
+            renewer.shutdownNow();
+        }
+        int id = currentWorkerId();
+        if (id >= 0) {
+            template.execute(RELEASE_WORKER, Collections.singletonList(KeyUtils.worker(id)), token);
+        }
+    }
+
+    /**
+     * 生成帖子id
+     *   时钟回拨或同一毫秒内序号用完时, 借用下一毫秒, 保证id递增
+     * @return
+     */
+    public long next() {
+        lock.lock();
+        try {
+            if (workerId < 0 || System.nanoTime() - leaseDeadline >= 0) {
+                throw new IllegalStateException("节点号租约已失效, 重新租用节点号之前不能生成帖子id");
+            }
+            long now = Math.max(System.currentTimeMillis(), lastTimestamp);
+            if (now == lastTimestamp) {
+                sequence = (sequence + 1) & SEQUENCE_MASK;
+                if (sequence == 0) {
+                    now++;
+                }
+            } else {
+                sequence = 0;
+            }
+            lastTimestamp = now;
+            return ((now - EPOCH) << (WORKER_BITS + SEQUENCE_BITS))
+                    | ((long) workerId << SEQUENCE_BITS)
+                    | sequence;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 是否有其他节点正在运行, 即持有其他节点号的租约, 一次pipeline往返
+     * @return
+     */
+    public boolean hasOtherWorkers() {
+        int self = currentWorkerId();
+        List<Object> results = template.executePipelined((RedisCallback<Object>) connection -> {
+            for (int i = 0; i < MAX_WORKERS; i++) {
+                if (i != self) {
+                    connection.exists(KeyUtils.worker(i).getBytes(StandardCharsets.UTF_8));
+                }
+            }
+            return null;
+        });
+        return results.contains(Boolean.TRUE);
+    }
+
+    /**
+     * 在该时刻之前生成的帖子id的上限
+     * @param millis
+     * @return 该时刻之前生成的帖子id都不大于返回值
+     */
+    public static long maxIdBefore(long millis) {
+        return ((millis - EPOCH) << (WORKER_BITS + SEQUENCE_BITS)) - 1;
+    }
+
+    /**
+     * 租用一个空闲的节点号
+     * @return 是否租用成功
+     */
+    private boolean lease() {
+        for (int i = 0; i < MAX_WORKERS; i++) {
+            long begin = System.nanoTime();
+            if (Boolean.TRUE.equals(template.opsForValue()
+                    .setIfAbsent(KeyUtils.worker(i), token, leaseMillis, TimeUnit.MILLISECONDS))) {
+                setLease(i, begin + TimeUnit.MILLISECONDS.toNanos(leaseMillis));
+                log.info("帖子id生成器使用节点号{}", i);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 续约节点号, 租约已丢失时停止生成帖子id并重新租用
+     */
+    private void renew() {
+        int id = currentWorkerId();
+        try {
+            if (id < 0) {
+                lease();
+                return;
+            }
+            long begin = System.nanoTime();
+            Long renewed = template.execute(RENEW_WORKER, Collections.singletonList(KeyUtils.worker(id)),
+                    token, String.valueOf(leaseMillis));
+            if (renewed != null && renewed == 1) {
+                setLease(id, begin + TimeUnit.MILLISECONDS.toNanos(leaseMillis));
+                return;
+            }
+            log.error("节点号{}的租约已丢失, 停止生成帖子id并重新租用节点号", id);
+            setLease(-1, 0);
+            if (!lease()) {
+                log.error("没有可用的节点号, 最多同时运行{}个节点", MAX_WORKERS);
+            }
+        } catch (Exception e) {
+            // 租约到期前仍可以生成帖子id, 之后由next()拒绝
+            log.warn("节点号{}续约失败", id, e);
+        }
+    }
+
+    private int currentWorkerId() {
+        lock.lock();
+        try {
+            return workerId;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void setLease(int id, long deadline) {
+        lock.lock();
+        try {
+            workerId = id;
+            leaseDeadline = deadline;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
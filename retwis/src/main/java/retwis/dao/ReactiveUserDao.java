@@ -0,0 +1,219 @@
+package retwis.dao;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.data.domain.Range;
+import org.springframework.data.redis.connection.RedisZSetCommands;
+import org.springframework.data.redis.core.ReactiveStringRedisTemplate;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import retwis.archive.PostArchive;
+import retwis.cache.PostCache;
+import retwis.cache.UserCache;
+import retwis.cache.UsernameFilter;
+import retwis.pojo.Page;
+import retwis.pojo.Post;
+import retwis.pojo.User;
+import retwis.util.KeyUtils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * UserDao读操作的非阻塞版本, 供响应式服务使用
+ *   基于ReactiveStringRedisTemplate, 互不依赖的查询同时发出(如用户信息和关注数, 粉丝数,
+ *   一页中每个帖子的hash), 在同一个连接上由lettuce自动流水线发送, 不占用等待的线程.
+ *   与UserDao共用本地的用户, 用户id, 帖子缓存和归档, 分页游标的格式相同.
+ *   不转换旧的list键和不带hash tag的用户键, 迁移完成前ReactiveServer不会启动.
+ */
+@Component
+@ConditionalOnProperty(name = "retwis.reactive.enabled", havingValue = "true")
+public class ReactiveUserDao {
+
+    private static final List<String> USER_FIELDS = Arrays.asList("username", "password");
+    private static final List<String> POST_FIELDS = Arrays.asList(UserDao.POST_FIELDS);
+
+    private final ReactiveStringRedisTemplate template;
+    private final UidResolver uidResolver;
+    private final UsernameFilter usernameFilter;
+    private final UserCache userCache;
+    private final PostCache postCache;
+    private final PostArchive postArchive;
+
+    @Autowired
+    public ReactiveUserDao(ReactiveStringRedisTemplate template,
+                           UidResolver uidResolver,
+                           UsernameFilter usernameFilter,
+                           UserCache userCache,
+                           PostCache postCache,
+                           PostArchive postArchive) {
+        this.template = template;
+        this.uidResolver = uidResolver;
+        this.usernameFilter = usernameFilter;
+        this.userCache = userCache;
+        this.postCache = postCache;
+        this.postArchive = postArchive;
+    }
+
+    /**
+     * 查询用户id
+     * @param name 用户名
+     * @return 用户不存在时为空
+     */
+    public Mono<String> findUid(String name) {
+        if (!usernameFilter.mightContain(name)) {
+            return Mono.empty();
+        }
+        String cached = uidResolver.cached(name);
+        if (cached != null) {
+            return Mono.just(cached);
+        }
+        return template.opsForValue().get(KeyUtils.userId(name))
+                .doOnNext(uid -> uidResolver.prime(name, uid));
+    }
+
+    /**
+     * 用户是否存在
+     * @param name
+     * @return
+     */
+    public Mono<Boolean> isUserValid(String name) {
+        return findUid(name).hasElement();
+    }
+
+    /**
+     * 根据用户名查询用户, 用户信息, 粉丝数和关注数同时查询
+     * @param name 用户名
+     * @return 用户不存在时为空
+     */
+    public Mono<User> findUser(String name) {
+        User cached = userCache.getIfPresent(name);
+        if (cached != null) {
+            return Mono.just(cached);
+        }
+        // 在读取之前记录, 读取期间发生过失效时不缓存读到的旧值
+        long gen = userCache.generation();
+        return findUid(name).flatMap(uid -> Mono.zip(
+                template.<String, String>opsForHash().multiGet(KeyUtils.user(uid), USER_FIELDS),
+                template.opsForZSet().size(KeyUtils.followers(uid)),
+                template.opsForZSet().size(KeyUtils.following(uid)))
+                .flatMap(t -> {
+                    List<String> values = t.getT1();
+                    if (values.get(0) == null) {
+                        return Mono.empty();
+                    }
+                    User user = new User();
+                    user.setId(Long.valueOf(uid));
+                    user.setUsername(values.get(0));
+                    user.setPassword(values.get(1));
+                    user.setFollower(t.getT2().intValue());
+                    user.setFollowing(t.getT3().intValue());
+                    userCache.putIfUnchanged(user, gen);
+                    return Mono.just(user);
+                }));
+    }
+
+    /**
+     * 查询最近注册的用户
+     * @param size
+     * @return
+     */
+    public Flux<User> findUsers(int size) {
+        return template.opsForList().range(KeyUtils.users(), 0, size - 1)
+                .flatMapSequential(this::findUser);
+    }
+
+    /**
+     * 查询最新帖子, 包括归档中的帖子
+     * @param before 查询比该游标更旧的帖子
+     * @param after 查询比该游标更新的帖子
+     * @param limit 每页帖子数
+     * @return
+     */
+    public Mono<Page> findNewPosts(String before, String after, int limit) {
+        return page(KeyUtils.posts(), true, before, after, limit);
+    }
+
+    /**
+     * 获取用户帖子
+     * @param name
+     * @param before 查询比该游标更旧的帖子
+     * @param after 查询比该游标更新的帖子
+     * @param limit 每页帖子数
+     * @return 用户不存在时为空页
+     */
+    public Mono<Page> findPosts(String name, String before, String after, int limit) {
+        return findUid(name)
+                .flatMap(uid -> page(KeyUtils.posts(uid), false, before, after, limit))
+                .defaultIfEmpty(emptyPage());
+    }
+
+    /**
+     * 与UserDao.page相同的分页方式
+     */
+    private Mono<Page> page(String key, boolean archived, String before, String after, int limit) {
+        Long afterPid = Page.parseCursor(after);
+        Long beforePid = afterPid == null ? Page.parseCursor(before) : null;
+        boolean toNewer = afterPid != null;
+        RedisZSetCommands.Limit count = RedisZSetCommands.Limit.limit().count(limit + 1);
+        Flux<String> range = toNewer
+                ? template.opsForZSet().rangeByScore(key,
+                        Range.rightUnbounded(Range.Bound.inclusive((double) (afterPid + 1))), count)
+                : template.opsForZSet().reverseRangeByScore(key, beforePid == null
+                        ? Range.unbounded()
+                        : Range.leftUnbounded(Range.Bound.inclusive((double) (beforePid - 1))), count);
+        return range.collectList().flatMap(redisPids -> {
+            List<Object> sources = new ArrayList<>(2);
+            sources.add(redisPids);
+            if (archived) {
+                sources.add(toNewer ? postArchive.newer(afterPid, limit + 1) : postArchive.older(beforePid, limit + 1));
+            }
+            List<String> pids = UserDao.merge(sources, toNewer, limit + 1);
+            Page page = UserDao.toPage(pids, toNewer, beforePid != null, limit);
+            return loadPosts(pids).map(posts -> {
+                page.setPosts(posts);
+                return page;
+            });
+        });
+    }
+
+    /**
+     * 加载帖子, 缓存中没有的帖子同时查询
+     * @param pids
+     * @return 按pids的顺序, 不包括已不存在的帖子
+     */
+    private Mono<List<Post>> loadPosts(List<String> pids) {
+        return Flux.fromIterable(pids)
+                .flatMapSequential(this::loadPost)
+                .collectList();
+    }
+
+    private Mono<Post> loadPost(String pid) {
+        Post cached = postCache.get(Long.parseLong(pid));
+        if (cached != null) {
+            return Mono.just(cached);
+        }
+        return template.<String, String>opsForHash().multiGet(KeyUtils.post(pid), POST_FIELDS)
+                .flatMap(values -> {
+                    Post post = UserDao.toPost(pid, values);
+                    if (post == null) {
+                        // 已从redis移到归档的旧帖子
+                        post = postArchive.find(Long.parseLong(pid));
+                    }
+                    if (post == null) {
+                        return Mono.empty();
+                    }
+                    postCache.put(post);
+                    return Mono.just(post);
+                });
+    }
+
+    private static Page emptyPage() {
+        Page page = new Page();
+        page.setPosts(Collections.emptyList());
+        return page;
+    }
+}
@@ -0,0 +1,113 @@
+package retwis.dao;
+
+import lombok.extern.slf4j.Slf4j;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Protocol;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.ScanParams;
+import redis.clients.jedis.ScanResult;
+import retwis.util.ConsistentHash;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * 把单机redis的数据导入各分片, 用于切换到分片模式(retwis.redis.topology=sharded)
+ *   用SCAN分批读取源redis的键, DUMP后按一致性哈希RESTORE到键所在的分片, 保留过期时间;
+ *   分片中已有的键被覆盖, 可以重复执行. 分片的顺序和名称需要与retwis.redis.shards相同.
+ *   导入前应用应当已在单机模式下完成ZSetMigrator和HashTagMigrator的迁移, 导入期间应用需要停止写入.
+ *   用法: java -cp retwis.jar -Dloader.main=retwis.dao.ShardImporter
+ *            org.springframework.boot.loader.PropertiesLauncher localhost:6379 localhost:6380,localhost:6381
+ */
+@Slf4j
+public class ShardImporter {
+
+    private static final int BATCH_SIZE = 500;
+
+    public static void main(String[] args) {
+        if (args.length != 2) {
+            System.err.println("用法: ShardImporter 源host:port 分片host:port,host:port,...");
+            System.exit(1);
+        }
+        List<String> shards = new ArrayList<>();
+        for (String shard : args[1].split(",")) {
+            shards.add(shard.trim());
+        }
+        ConsistentHash ring = new ConsistentHash(shards);
+        List<Jedis> targets = new ArrayList<>(shards.size());
+        try (Jedis source = connect(args[0])) {
+            for (String shard : shards) {
+                targets.add(connect(shard));
+            }
+            long[] imported = new long[shards.size()];
+            ScanParams params = new ScanParams().count(BATCH_SIZE);
+            byte[] cursor = ScanParams.SCAN_POINTER_START_BINARY;
+            do {
+                ScanResult<byte[]> scan = source.scan(cursor, params);
+                cursor = scan.getCursorAsBytes();
+                List<byte[]> keys = scan.getResult();
+                // 同一批键的DUMP和PTTL在一次往返中读取
+                Pipeline read = source.pipelined();
+                List<Response<byte[]>> values = new ArrayList<>(keys.size());
+                List<Response<Long>> ttls = new ArrayList<>(keys.size());
+                for (byte[] key : keys) {
+                    values.add(read.dump(key));
+                    ttls.add(read.pttl(key));
+                }
+                read.sync();
+
+                List<Pipeline> writes = new ArrayList<>(targets.size());
+                for (Jedis target : targets) {
+                    writes.add(target.pipelined());
+                }
+                List<Response<Object>> restored = new ArrayList<>(keys.size());
+                for (int i = 0; i < keys.size(); i++) {
+                    byte[] value = values.get(i).get();
+                    long ttl = ttls.get(i).get();
+                    // 读取期间已被删除或过期的键
+                    if (value == null || ttl == -2) {
+                        continue;
+                    }
+                    int shard = ring.node(keys.get(i));
+                    restored.add(restoreReplace(writes.get(shard), keys.get(i), ttl > 0 ? ttl : 0, value));
+                    imported[shard]++;
+                }
+                for (Pipeline write : writes) {
+                    write.sync();
+                }
+                // RESTORE失败时抛出异常, 停止导入
+                for (Response<Object> response : restored) {
+                    response.get();
+                }
+            } while (!Arrays.equals(cursor, ScanParams.SCAN_POINTER_START_BINARY));
+            for (int i = 0; i < shards.size(); i++) {
+                log.info("分片{}导入{}个键", shards.get(i), imported[i]);
+            }
+        } finally {
+            for (Jedis target : targets) {
+                target.close();
+            }
+        }
+    }
+
+    /**
+     * RESTORE key ttl value REPLACE
+     *   jedis 3.3的restoreReplace只接受int的ttl(毫秒), 超过约24.8天会溢出为负数, 因此直接发送命令
+     * @param pipeline
+     * @param key
+     * @param ttl 剩余的过期时间(毫秒), 0表示不过期
+     * @param value DUMP的结果
+     * @return
+     */
+    private static Response<Object> restoreReplace(Pipeline pipeline, byte[] key, long ttl, byte[] value) {
+        return pipeline.sendCommand(Protocol.Command.RESTORE, key, Protocol.toByteArray(ttl), value,
+                Protocol.Keyword.REPLACE.raw);
+    }
+
+    private static Jedis connect(String address) {
+        int colon = address.lastIndexOf(':');
+        return new Jedis(address.substring(0, colon), Integer.parseInt(address.substring(colon + 1)));
+    }
+}
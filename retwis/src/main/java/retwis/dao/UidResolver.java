@@ -0,0 +1,199 @@
+package retwis.dao;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+import org.springframework.web.context.request.RequestAttributes;
+import org.springframework.web.context.request.RequestContextHolder;
+import retwis.cache.LruCache;
+import retwis.cache.UsernameFilter;
+import retwis.util.KeyUtils;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 用户名到用户id的解析
+ *   用户名和id的对应关系写入后不再改变, 因此解析结果保存在全局缓存中,
+ *   同时在当前请求中记录一份, 同一个请求里每个用户名最多查询一次.
+ *   用户不存在的结果不缓存, 该用户名之后可能被注册;
+ *   不存在的用户名大多可以由本地的布隆过滤器直接判断.
+ */
+@Component
+public class UidResolver {
+
+    // 当前请求中已解析的用户名, 保存在request attribute中
+    private static final String REQUEST_ATTRIBUTE = UidResolver.class.getName() + ".uids";
+
+    private final StringRedisTemplate template;
+
+    private final LruCache<String, String> cache;
+
+    // 已注册用户名的布隆过滤器
+    private final UsernameFilter usernameFilter;
+
+    @Autowired
+    public UidResolver(StringRedisTemplate template,
+                       UsernameFilter usernameFilter,
+                       MeterRegistry meterRegistry,
+                       @Value("${retwis.cache.uid.max-size:100000}") int maxSize) {
+        this.template = template;
+        this.usernameFilter = usernameFilter;
+        this.cache = new LruCache<>("uid", maxSize, 0);
+        cache.bindTo(meterRegistry);
+    }
+
+    /**
+     * 查询用户id
+     * @param name 用户名
+     * @return 用户不存在时返回null
+     */
+    public String resolve(String name) {
+        if (!usernameFilter.mightContain(name)) {
+            return null;
+        }
+        Map<String, String> requestUids = requestUids();
+        if (requestUids == null) {
+            return cache.get(name, this::load);
+        }
+        String uid = requestUids.get(name);
+        if (uid == null) {
+            uid = cache.get(name, this::load);
+            if (uid != null) {
+                requestUids.put(name, uid);
+            }
+        }
+        return uid;
+    }
+
+    /**
+     * 查询用户id, 过滤器判断不存在时仍然查询redis
+     *   用于登录: 订阅断开期间丢失的注册消息会让过滤器把新用户误判为不存在,
+     *   此时查到的用户名补进过滤器, 并重新构建过滤器
+     * @param name 用户名
+     * @return 用户不存在时返回null
+     */
+    public String resolveChecked(String name) {
+        if (usernameFilter.mightContain(name)) {
+            return resolve(name);
+        }
+        String uid = cache.get(name, this::load);
+        if (uid != null) {
+            usernameFilter.missed(name);
+        }
+        return uid;
+    }
+
+    /**
+     * 批量查询用户id
+     *   缓存中没有的用户名通过一次MGET取回
+     * @param names 用户名
+     * @return 存在的用户名到用户id的映射, 按names的顺序排列
+     */
+    public Map<String, String> resolveAll(Collection<String> names) {
+        return resolveAll(names, false);
+    }
+
+    /**
+     * 批量查询用户id, 与resolveChecked相同, 过滤器判断不存在的用户名仍然查询redis
+     *   用于帖子中@的用户: 渲染结果随帖子永久保存, 不能因为丢失的注册消息少了链接
+     * @param names 用户名
+     * @return 存在的用户名到用户id的映射, 按names的顺序排列
+     */
+    public Map<String, String> resolveAllChecked(Collection<String> names) {
+        return resolveAll(names, true);
+    }
+
+    private Map<String, String> resolveAll(Collection<String> names, boolean checked) {
+        Map<String, String> requestUids = requestUids();
+        Map<String, String> uids = new HashMap<>();
+        List<String> missing = new ArrayList<>();
+        for (String name : names) {
+            String uid = requestUids == null ? null : requestUids.get(name);
+            if (uid == null) {
+                uid = cache.get(name);
+            }
+            if (uid != null) {
+                uids.put(name, uid);
+            } else if (checked || usernameFilter.mightContain(name)) {
+                missing.add(name);
+            }
+        }
+        if (!missing.isEmpty()) {
+            List<String> keys = new ArrayList<>(missing.size());
+            for (String name : missing) {
+                keys.add(KeyUtils.userId(name));
+            }
+            List<String> values = template.opsForValue().multiGet(keys);
+            for (int i = 0; i < missing.size(); i++) {
+                String uid = values == null ? null : values.get(i);
+                if (uid != null) {
+                    if (checked && !usernameFilter.mightContain(missing.get(i))) {
+                        usernameFilter.missed(missing.get(i));
+                    }
+                    cache.put(missing.get(i), uid);
+                    uids.put(missing.get(i), uid);
+                }
+            }
+        }
+        if (requestUids != null) {
+            requestUids.putAll(uids);
+        }
+        // 按names的顺序排列
+        Map<String, String> ordered = new LinkedHashMap<>();
+        for (String name : names) {
+            String uid = uids.get(name);
+            if (uid != null) {
+                ordered.put(name, uid);
+            }
+        }
+        return ordered;
+    }
+
+    /**
+     * 只查询本地缓存, 不访问redis
+     * @param name 用户名
+     * @return 缓存中没有时返回null
+     */
+    public String cached(String name) {
+        return cache.get(name);
+    }
+
+    /**
+     * 记录新注册的用户
+     * @param name
+     * @param uid
+     */
+    public void prime(String name, String uid) {
+        cache.put(name, uid);
+        usernameFilter.add(name);
+    }
+
+    private String load(String name) {
+        return template.opsForValue().get(KeyUtils.userId(name));
+    }
+
+    /**
+     * 当前请求的解析结果
+     * @return 不在请求线程中时返回null
+     */
+    @SuppressWarnings("unchecked")
+    private Map<String, String> requestUids() {
+        RequestAttributes attributes = RequestContextHolder.getRequestAttributes();
+        if (attributes == null) {
+            return null;
+        }
+        Map<String, String> uids = (Map<String, String>) attributes.getAttribute(REQUEST_ATTRIBUTE, RequestAttributes.SCOPE_REQUEST);
+        if (uids == null) {
+            uids = new HashMap<>();
+            attributes.setAttribute(REQUEST_ATTRIBUTE, uids, RequestAttributes.SCOPE_REQUEST);
+        }
+        return uids;
+    }
+}
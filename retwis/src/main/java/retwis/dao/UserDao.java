@@ -1,21 +1,43 @@
 package retwis.dao;
 
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.StringRedisConnection;
 import org.springframework.data.redis.core.BoundHashOperations;
+import org.springframework.data.redis.core.BoundZSetOperations;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
-import org.springframework.data.redis.core.ValueOperations;
-import org.springframework.data.redis.support.atomic.RedisAtomicLong;
+import org.springframework.data.redis.core.ZSetOperations;
+import org.springframework.data.redis.core.script.RedisScript;
 import org.springframework.data.redis.support.collections.DefaultRedisList;
 import org.springframework.data.redis.support.collections.RedisList;
 import org.springframework.stereotype.Repository;
+import retwis.archive.PostArchive;
+import retwis.cache.PostCache;
+import retwis.pojo.Page;
 import retwis.pojo.Post;
-import retwis.pojo.Range;
 import retwis.pojo.User;
 import retwis.util.KeyUtils;
+import retwis.util.ScriptUtils;
 
+import javax.annotation.PreDestroy;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
 
 @Slf4j
 @Repository
@@ -23,76 +45,185 @@ public class UserDao {
 
     private static final String mention = "@[\\w]+";
 
+    // 注册用户的脚本
+    private static final RedisScript<Long> REGISTER_USER = ScriptUtils.load("scripts/register_user.lua", Long.class);
+
+    // 帖子hash中的字段,批量查询时按此顺序返回
+    static final String[] POST_FIELDS = {"uid", "username", "content", "publishTime"};
+
     private final StringRedisTemplate template;
-    // 处理键值对操作
-    private final ValueOperations<String, String> valueOps;
+    // list到sorted set的迁移
+    private final ZSetMigrator zSetMigrator;
+    // 用户键名到hash tag键名的迁移
+    private final HashTagMigrator hashTagMigrator;
+    // 帖子缓存
+    private final PostCache postCache;
+    // 已移出redis的旧帖子
+    private final PostArchive postArchive;
+    // 用户名到用户id的解析
+    private final UidResolver uidResolver;
 
-    // 处理用户id增长的计数器
-    private final RedisAtomicLong userIdCounter;
-    // 处理帖子id增长的计数器
-    private final RedisAtomicLong postIdCounter;
+    // 分配用户id
+    private final IdAllocator userIds;
+    // 生成帖子id
+    private final PostIdGenerator postIds;
+    // 合并并发的发帖写入,未开启时为null
+    private final WriteBatcher<Post> postWriter;
 
     private RedisList<String> users; // 保存所有用户的名称
-    private RedisList<String> posts; // 保存所有帖子的id
+
+    // 是否为单机模式, cluster和分片模式下不能在一个脚本中访问不同用户或全局的键
+    private final boolean standalone;
+
+    // 时间线最多保留的帖子数
+    private final int timelineMaxSize;
+    // 提到用户的帖子最多保留的数量
+    private final int mentionsMaxSize;
+    // 推送时每个pipeline包含的粉丝数
+    private final int fanoutBatchSize;
+    // 粉丝数超过该值的用户不再推送帖子,改为读时合并
+    private final int fanoutFollowerThreshold;
+
+    // 跳过推送的帖子数
+    private final Counter fanoutSkipped;
+    // 读时合并的耗时
+    private final Timer mergeTimer;
+    // 读时合并的列表数
+    private final DistributionSummary mergeSources;
 
     @Autowired
-    public UserDao(StringRedisTemplate template) {
+    public UserDao(StringRedisTemplate template,
+                   ZSetMigrator zSetMigrator,
+                   HashTagMigrator hashTagMigrator,
+                   PostCache postCache,
+                   PostArchive postArchive,
+                   UidResolver uidResolver,
+                   PostIdGenerator postIds,
+                   MeterRegistry meterRegistry,
+                   @Value("${retwis.timeline.max-size:1000}") int timelineMaxSize,
+                   @Value("${retwis.mentions.max-size:1000}") int mentionsMaxSize,
+                   @Value("${retwis.fanout.batch-size:500}") int fanoutBatchSize,
+                   @Value("${retwis.fanout.follower-threshold:10000}") int fanoutFollowerThreshold,
+                   @Value("${retwis.id.user-block-size:1000}") int userIdBlockSize,
+                   @Value("${retwis.post.pipeline.enabled:false}") boolean postPipelineEnabled,
+                   @Value("${retwis.post.pipeline.batch-size:64}") int postPipelineBatchSize,
+                   @Value("${retwis.post.pipeline.linger-millis:2}") long postPipelineLingerMillis,
+                   @Value("${retwis.post.pipeline.timeout-millis:5000}") long postPipelineTimeoutMillis,
+                   @Value("${retwis.redis.topology:standalone}") String topology) {
         this.template = template;
-        valueOps = template.opsForValue();
-
+        this.zSetMigrator = zSetMigrator;
+        this.hashTagMigrator = hashTagMigrator;
+        this.standalone = "standalone".equals(topology);
+        this.postCache = postCache;
+        this.postArchive = postArchive;
+        this.uidResolver = uidResolver;
+        this.postIds = postIds;
+        this.timelineMaxSize = timelineMaxSize;
+        this.mentionsMaxSize = mentionsMaxSize;
+        this.fanoutBatchSize = fanoutBatchSize;
+        this.fanoutFollowerThreshold = fanoutFollowerThreshold;
+        meterRegistry.gauge("retwis.fanout.follower.threshold", this, dao -> dao.fanoutFollowerThreshold);
+        fanoutSkipped = meterRegistry.counter("retwis.fanout.skipped");
+        mergeTimer = meterRegistry.timer("retwis.timeline.merge");
+        mergeSources = meterRegistry.summary("retwis.timeline.merge.sources");
 
-        // 获取全局uid
-        userIdCounter = new RedisAtomicLong(KeyUtils.globalUid(), template.getConnectionFactory());
-        postIdCounter = new RedisAtomicLong(KeyUtils.globalPid(), template.getConnectionFactory());
+        // 按块租用全局uid
+        userIds = new IdAllocator(template, KeyUtils.globalUid(), userIdBlockSize);
+        postWriter = postPipelineEnabled
+                ? new WriteBatcher<>("post", this::writePosts, postPipelineBatchSize, postPipelineLingerMillis,
+                        postPipelineTimeoutMillis, meterRegistry)
+                : null;
         // 获取用户列表
         users = new DefaultRedisList<>(KeyUtils.users(), template);
-        posts = new DefaultRedisList<>(KeyUtils.posts(), template);
     }
 
     /**
      * 注册用户
-     *   步骤:
-     *     1. 添加用户信息
-     *     2. 把用户id加入全局用户表
+     *   用户id从本地租用的id块中分配, 然后通过lua脚本一次往返原子地完成:
+     *     1. 检查用户名是否已存在
+     *     2. 添加用户信息
+     *     3. 把用户id加入全局用户表
+     *     4. 通知所有节点有新用户注册
+     *   cluster和分片模式下这些键不在同一个节点, 改为依次执行, 见registrationBySteps
      * @param name
      * @param pass
-     * @return 用户id
+     * @return 用户id, 用户名已存在时返回null
      */
     public String registration(String name, String pass) {
-        // 获取用户id
-        String uid = String.valueOf(userIdCounter.incrementAndGet());
-        // 添加用户信息
-        BoundHashOperations<String, String, String> addUser = template.boundHashOps(KeyUtils.user(uid));
-        addUser.put("username", name);
-        addUser.put("password", pass);
-        // 把用户名称和用户id关联起来
-        valueOps.set(KeyUtils.userId(name), uid);
-
-        // 加入新注册的用户到用户列表
-        users.addFirst(name);
+        String uid = String.valueOf(userIds.next());
+        if (!standalone) {
+            return registrationBySteps(name, pass, uid);
+        }
+        Long created = template.execute(REGISTER_USER,
+                Arrays.asList(KeyUtils.userId(name), KeyUtils.users(), KeyUtils.user(uid)),
+                name, pass, uid, KeyUtils.registrationChannel());
+        if (created == null || created == 0) {
+            return null;
+        }
+        uidResolver.prime(name, uid);
+        return uid;
+    }
 
+    /**
+     * 不使用脚本的注册, 用户名的SETNX保证同名用户只注册一次:
+     *   先写入新用户id的用户信息, 用户名已存在时再删除; 之后的步骤中断时, 用户可以登录, 但不在最近注册的用户列表中
+     * @param name
+     * @param pass
+     * @param uid 预先分配的用户id
+     * @return 用户id, 用户名已存在时返回null
+     */
+    private String registrationBySteps(String name, String pass, String uid) {
+        Map<String, String> hash = new HashMap<>();
+        hash.put("username", name);
+        hash.put("password", pass);
+        template.opsForHash().putAll(KeyUtils.user(uid), hash);
+        if (!Boolean.TRUE.equals(template.opsForValue().setIfAbsent(KeyUtils.userId(name), uid))) {
+            template.delete(KeyUtils.user(uid));
+            return null;
+        }
+        users.addFirst(name);
+        template.convertAndSend(KeyUtils.registrationChannel(), name);
+        uidResolver.prime(name, uid);
         return uid;
     }
 
+    @PreDestroy
+    public void shutdown() {
+        if (postWriter != null) {
+            postWriter.shutdown();
+        }
+    }
+
     /**
-     * 查询最近注册的用户
+     * 查询最近注册的用户名
      * @param size
      * @return
      */
-    public List<User> findUsers(int size) {
-        List<User> list = new ArrayList<>(size);
-        users.range(0, size - 1).stream().forEach(
-                username -> list.add(findUser(username))
-        );
-        return list;
+    public List<String> findUsernames(int size) {
+        return users.range(0, size - 1);
     }
 
     /**
-     * 全部帖子数
-     * @return
+     * 查询全局帖子列表的版本和最近注册的用户名, 一次pipeline往返
+     *   发帖和注册都会改变结果, 可以作为时间线广场的版本.
+     *   帖子id不按大小顺序写入(并发发帖, 合并写入的等待, 其他节点的节点号), 晚写入的较小id不改变最新帖子id,
+     *   因此使用写入帖子时递增的版本号, 而不是最新帖子id
+     * @param size 用户名数量
+     * @return 第一个元素为帖子列表的版本, 还没有发过帖子时为null; 之后为最近注册的用户名
      */
-    public int postsSize() {
-        return posts.size();
+    public List<String> findHeads(int size) {
+        List<Object> results = template.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            conn.get(KeyUtils.postsVersion());
+            conn.lRange(KeyUtils.users(), 0, size - 1);
+            return null;
+        });
+        @SuppressWarnings("unchecked")
+        List<String> names = (List<String>) results.get(1);
+        List<String> heads = new ArrayList<>(names.size() + 1);
+        heads.add((String) results.get(0));
+        heads.addAll(names);
+        return heads;
     }
 
     /**
@@ -101,46 +232,443 @@ public class UserDao {
      * @return
      */
     public String savePost(Post post) {
+        Post saved = new Post();
         // 获取帖子id
-        String pid = String.valueOf(postIdCounter.incrementAndGet());
-        // 添加帖子信息
-        BoundHashOperations<String, Object, Object> addPost = template.boundHashOps(KeyUtils.post(pid));
-        String uid = String.valueOf(post.getUid());
-        addPost.put("uid", uid);
-        addPost.put("content", post.getContent());
-        addPost.put("publishTime", String.valueOf(post.getPublishTime()));
-        addPost.put("username", post.getUsername());
+        saved.setId(postIds.next());
+        saved.setUid(post.getUid());
+        saved.setUsername(post.getUsername());
+        saved.setContent(post.getContent());
+        saved.setPublishTime(post.getPublishTime());
 
-        // 加入帖子到全局帖子列表
-        posts.addFirst(pid);
+        if (postWriter != null) {
+            // 和其他线程的帖子合并写入
+            postWriter.write(saved);
+        } else {
+            writePosts(Collections.singletonList(saved));
+        }
 
-        // 添加到用户帖子列表
-        posts(uid).addFirst(pid);
+        // 新帖子最可能被读到,写入后直接放入缓存
+        postCache.put(saved);
 
-        return pid;
+        return String.valueOf(saved.getId());
     }
 
     /**
-     * 查询最新帖子
-     * @param start
-     * @param end
+     * 通过一次pipeline写入多个帖子
+     *   步骤:
+     *     1. 添加帖子信息
+     *     2. 加入帖子到全局帖子列表和用户帖子列表, 并递增两个列表的版本
+     *     3. 添加到自己的时间线,粉丝的时间线由fanOut异步推送
+     *   版本与对应的列表在同一个slot和分片, 在pipeline中排在ZADD之后: 读到新版本时一定能读到新帖子
+     * @param list
+     */
+    private void writePosts(List<Post> list) {
+        Keys keys = new Keys();
+        String postsKey = keys.posts();
+        List<String> userPostsKeys = new ArrayList<>(list.size());
+        List<String> timelineKeys = new ArrayList<>(list.size());
+        for (Post post : list) {
+            String uid = String.valueOf(post.getUid());
+            userPostsKeys.add(keys.posts(uid));
+            timelineKeys.add(keys.timeline(uid));
+        }
+        keys.ensure();
+        template.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            for (int i = 0; i < list.size(); i++) {
+                Post post = list.get(i);
+                String pid = String.valueOf(post.getId());
+                Map<String, String> hash = new HashMap<>();
+                hash.put("uid", String.valueOf(post.getUid()));
+                hash.put("content", post.getContent());
+                hash.put("publishTime", String.valueOf(post.getPublishTime()));
+                hash.put("username", post.getUsername());
+                conn.hMSet(KeyUtils.post(pid), hash);
+                conn.zAdd(postsKey, post.getId(), pid);
+                conn.zAdd(userPostsKeys.get(i), post.getId(), pid);
+                conn.incr(KeyUtils.postsVersion(String.valueOf(post.getUid())));
+                String timeline = timelineKeys.get(i);
+                conn.zAdd(timeline, post.getId(), pid);
+                conn.zRemRange(timeline, 0, -timelineMaxSize - 1);
+            }
+            conn.incr(KeyUtils.postsVersion());
+            return null;
+        });
+    }
+
+    /**
+     * 把帖子推送到所有粉丝的时间线
+     *   粉丝较多时分批pipeline写入,每批一次往返;
+     *   粉丝数超过阈值时不推送,由粉丝读时间线时合并
+     * @param uid 发帖用户id
+     * @param pid 帖子id
+     */
+    public void fanOut(String uid, String pid) {
+        BoundZSetOperations<String, String> followers = followers(uid);
+        long size = followers.zCard();
+        if (size > fanoutFollowerThreshold) {
+            template.opsForSet().add(KeyUtils.celebrities(), uid);
+            fanoutSkipped.increment();
+            return;
+        }
+        for (long start = 0; start < size; start += fanoutBatchSize) {
+            pushTimeline(new ArrayList<>(followers.range(start, start + fanoutBatchSize - 1)), pid);
+        }
+    }
+
+    /**
+     * 推送帖子到多个用户的时间线,并截断超出长度的部分
+     * @param uids
+     * @param pid
+     */
+    private void pushTimeline(List<String> uids, String pid) {
+        if (uids.isEmpty()) {
+            return;
+        }
+        double score = Double.parseDouble(pid);
+        Keys keys = new Keys();
+        List<String> timelineKeys = new ArrayList<>(uids.size());
+        for (String uid : uids) {
+            timelineKeys.add(keys.timeline(uid));
+        }
+        keys.ensure();
+        template.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            for (String key : timelineKeys) {
+                conn.zAdd(key, score, pid);
+                conn.zRemRange(key, 0, -timelineMaxSize - 1);
+            }
+            return null;
+        });
+    }
+
+    /**
+     * 把帖子加入被提到的用户的提及列表,并截断超出长度的部分
+     * @param uids 被提到的用户id
+     * @param pid
+     */
+    public void addMentions(Collection<String> uids, String pid) {
+        if (uids.isEmpty()) {
+            return;
+        }
+        double score = Double.parseDouble(pid);
+        Keys keys = new Keys();
+        List<String> mentionsKeys = new ArrayList<>(uids.size());
+        for (String uid : uids) {
+            mentionsKeys.add(keys.mentions(uid));
+        }
+        keys.ensure();
+        template.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            for (String key : mentionsKeys) {
+                conn.zAdd(key, score, pid);
+                conn.zRemRange(key, 0, -mentionsMaxSize - 1);
+            }
+            return null;
+        });
+    }
+
+    /**
+     * 获取提到用户的帖子
+     * @param name
+     * @param before 查询比该游标更旧的帖子
+     * @param after 查询比该游标更新的帖子
+     * @param limit 每页帖子数
      * @return
      */
-    public List<Post> findNewPosts(int start, int end) {
-        List<Post> list = new ArrayList<>(end - start + 1);
-        posts.range(start, end).stream().forEach(
-                pid -> list.add(findPost(pid))
-        );
+    public Page findMentions(String name, String before, String after, int limit) {
+        return page(Collections.singletonList(mentionsKey(findUid(name))), false, before, after, limit);
+    }
+
+    /**
+     * 获取时间线帖子
+     *   粉丝数超过阈值的用户的帖子没有推送到时间线, 查询时按帖子id合并
+     * @param name
+     * @param before 查询比该游标更旧的帖子
+     * @param after 查询比该游标更新的帖子
+     * @param limit 每页帖子数
+     * @return
+     */
+    public Page findTimeline(String name, String before, String after, int limit) {
+        String uid = findUid(name);
+        Keys migrating = new Keys();
+        List<String> keys = new ArrayList<>();
+        keys.add(migrating.timeline(uid));
+        for (String id : pulledFollowing(uid)) {
+            keys.add(migrating.posts(id));
+        }
+        migrating.ensure();
+        return page(keys, false, before, after, limit);
+    }
+
+    /**
+     * 用户关注的人中,帖子没有被推送,需要读时合并的用户
+     * @param uid
+     * @return
+     */
+    private List<String> pulledFollowing(String uid) {
+        Set<String> celebrities = template.opsForSet().members(KeyUtils.celebrities());
+        if (celebrities == null || celebrities.isEmpty()) {
+            return Collections.emptyList();
+        }
+        // 粉丝数超过阈值的用户很少,逐个检查是否关注比读取整个关注列表更快
+        List<String> candidates = new ArrayList<>(celebrities);
+        String key = following(uid).getKey();
+        List<Object> scores = template.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            for (String id : candidates) {
+                conn.zScore(key, id);
+            }
+            return null;
+        });
+        List<String> list = new ArrayList<>();
+        for (int i = 0; i < candidates.size(); i++) {
+            if (scores.get(i) != null) {
+                list.add(candidates.get(i));
+            }
+        }
         return list;
     }
 
+    /**
+     * 按游标查询一页帖子
+     *   每个有序集合通过一次ZRANGEBYSCORE取出游标之后的limit+1个帖子id,
+     *   多个有序集合时按帖子id多路归并, 多出的一个帖子用于判断是否还有下一页
+     * @param keys 帖子id有序集合, 分数为帖子id
+     * @param archived 是否同时查询已归档的帖子, 只有全局帖子列表的旧帖子会被移到归档中
+     * @param before 查询比该游标更旧的帖子
+     * @param after 查询比该游标更新的帖子, 优先于before
+     * @param limit 每页帖子数
+     * @return
+     */
+    private Page page(List<String> keys, boolean archived, String before, String after, int limit) {
+        long begin = System.nanoTime();
+        Long afterPid = Page.parseCursor(after);
+        Long beforePid = afterPid == null ? Page.parseCursor(before) : null;
+        // 是否向更新的方向翻页
+        boolean toNewer = afterPid != null;
+        List<Object> results = template.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            for (String key : keys) {
+                if (toNewer) {
+                    conn.zRangeByScore(key, afterPid + 1, Double.POSITIVE_INFINITY, 0, limit + 1);
+                } else {
+                    double max = beforePid == null ? Double.POSITIVE_INFINITY : beforePid - 1;
+                    conn.zRevRangeByScore(key, Double.NEGATIVE_INFINITY, max, 0, limit + 1);
+                }
+            }
+            return null;
+        });
+        if (archived) {
+            // 归档在本地内存中有索引, 直接作为一路参与归并
+            results = new ArrayList<>(results);
+            results.add(toNewer ? postArchive.newer(afterPid, limit + 1) : postArchive.older(beforePid, limit + 1));
+        }
+        List<String> pids = merge(results, toNewer, limit + 1);
+        if (keys.size() > 1) {
+            mergeTimer.record(System.nanoTime() - begin, TimeUnit.NANOSECONDS);
+            mergeSources.record(keys.size());
+        }
+        Page page = toPage(pids, toNewer, beforePid != null, limit);
+        page.setPosts(loadPosts(pids));
+        return page;
+    }
+
+    /**
+     * 根据归并的结果计算翻页游标
+     *   pids会被截断为一页并按从新到旧排列, 之后由调用方加载帖子
+     * @param pids 按翻页方向排列的帖子id, 最多limit + 1个, 多出的一个表示还有下一页
+     * @param toNewer 是否向更新的方向翻页
+     * @param hasBefore 是否从某个游标向更旧的方向翻页
+     * @param limit 每页帖子数
+     * @return 只有游标的一页
+     */
+    static Page toPage(List<String> pids, boolean toNewer, boolean hasBefore, int limit) {
+        boolean more = pids.size() > limit;
+        if (more) {
+            pids.subList(limit, pids.size()).clear();
+        }
+        if (toNewer) {
+            Collections.reverse(pids);
+        }
+        Page page = new Page();
+        if (!pids.isEmpty()) {
+            String first = Page.cursor(Long.parseLong(pids.get(0)));
+            String last = Page.cursor(Long.parseLong(pids.get(pids.size() - 1)));
+            if (toNewer) {
+                page.setNewer(more ? first : null);
+                page.setOlder(last);
+            } else {
+                page.setNewer(hasBefore ? first : null);
+                page.setOlder(more ? last : null);
+            }
+        }
+        return page;
+    }
+
+    /**
+     * 按帖子id多路归并多个有序的帖子id列表, 重复的帖子只保留一个
+     * @param sources
+     * @param ascending 是否从旧到新排列
+     * @param limit 最多返回的帖子数
+     * @return
+     */
+    static List<String> merge(List<Object> sources, boolean ascending, int limit) {
+        List<List<String>> lists = new ArrayList<>(sources.size());
+        for (Object source : sources) {
+            @SuppressWarnings("unchecked")
+            Collection<String> pids = (Collection<String>) source;
+            lists.add(new ArrayList<>(pids));
+        }
+        // 每个元素为{列表下标, 列表内位置},堆顶为下一个要输出的帖子
+        Comparator<int[]> order = Comparator.comparingLong(c -> pidAt(lists, c));
+        PriorityQueue<int[]> heap = new PriorityQueue<>(ascending ? order : order.reversed());
+        for (int i = 0; i < lists.size(); i++) {
+            if (!lists.get(i).isEmpty()) {
+                heap.add(new int[]{i, 0});
+            }
+        }
+        List<String> pids = new ArrayList<>(limit);
+        String last = null;
+        while (!heap.isEmpty() && pids.size() < limit) {
+            int[] top = heap.poll();
+            String pid = lists.get(top[0]).get(top[1]);
+            if (++top[1] < lists.get(top[0]).size()) {
+                heap.add(top);
+            }
+            // 推送和合并可能得到同一个帖子
+            if (!pid.equals(last)) {
+                pids.add(pid);
+                last = pid;
+            }
+        }
+        return pids;
+    }
+
+    private static long pidAt(List<List<String>> lists, int[] cursor) {
+        return Long.parseLong(lists.get(cursor[0]).get(cursor[1]));
+    }
+
+    /**
+     * 查询最新帖子
+     * @param before 查询比该游标更旧的帖子
+     * @param after 查询比该游标更新的帖子
+     * @param limit 每页帖子数
+     * @return
+     */
+    public Page findNewPosts(String before, String after, int limit) {
+        return page(Collections.singletonList(postsKey()), true, before, after, limit);
+    }
+
+    /**
+     * 全局帖子列表中保留最新的keep个帖子时, 可以归档的最大帖子id
+     * @param keep
+     * @return 帖子数不超过keep时返回-1
+     */
+    public long archiveCutoff(int keep) {
+        Set<ZSetOperations.TypedTuple<String>> tuples =
+                template.opsForZSet().reverseRangeWithScores(postsKey(), keep, keep);
+        if (tuples == null || tuples.isEmpty()) {
+            return -1;
+        }
+        return tuples.iterator().next().getScore().longValue();
+    }
+
+    /**
+     * 把一批旧帖子从redis移到归档
+     *   步骤:
+     *     1. 从全局帖子列表中按id从小到大取出大于已归档的最大id, 不大于maxPid的帖子
+     *     2. 通过pipeline取回帖子信息, 追加到归档并刷到磁盘
+     *     3. 通过pipeline删除帖子信息, 并从全局帖子列表中移除
+     *   用户帖子列表和时间线中的帖子id保留, 查询时从归档读取帖子信息.
+     *   其他节点生成的id可能晚于更大的id写入, 这些不大于已归档的最大id的帖子不再归档, 留在redis中照常读取
+     * @param maxPid 可以归档的最大帖子id
+     * @param batchSize 每批最多的帖子数
+     * @return 本批移出redis的帖子数, 为0时说明已经没有可以归档的帖子
+     */
+    public int archivePosts(long maxPid, int batchSize) {
+        String key = postsKey();
+        long minPid = postArchive.lastPid() + 1;
+        if (minPid > maxPid) {
+            return 0;
+        }
+        Set<String> range = template.opsForZSet().rangeByScore(key, minPid, maxPid, 0, batchSize);
+        if (range == null || range.isEmpty()) {
+            return 0;
+        }
+        List<String> pids = new ArrayList<>(range);
+        List<Object> results = template.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            for (String pid : pids) {
+                conn.hMGet(KeyUtils.post(pid), POST_FIELDS);
+            }
+            return null;
+        });
+        List<Post> posts = new ArrayList<>(pids.size());
+        for (int i = 0; i < pids.size(); i++) {
+            @SuppressWarnings("unchecked")
+            List<String> values = (List<String>) results.get(i);
+            Post post = toPost(pids.get(i), values);
+            if (post != null) {
+                posts.add(post);
+            }
+        }
+        postArchive.append(posts);
+        // 帖子信息已不存在的id直接移除
+        List<String> removed = new ArrayList<>(pids.size());
+        for (int i = 0; i < pids.size(); i++) {
+            if (results.get(i) == null || ((List<?>) results.get(i)).get(0) == null
+                    || postArchive.find(Long.parseLong(pids.get(i))) != null) {
+                removed.add(pids.get(i));
+            }
+        }
+        if (!removed.isEmpty()) {
+            template.executePipelined((RedisCallback<Object>) connection -> {
+                StringRedisConnection conn = (StringRedisConnection) connection;
+                for (String pid : removed) {
+                    conn.del(KeyUtils.post(pid));
+                    conn.zRem(key, pid);
+                }
+                return null;
+            });
+        }
+        return removed.size();
+    }
+
     /**
      * 用户名是否存在
      * @param name
      * @return
      */
     public boolean isUserValid(String name) {
-        return template.hasKey(KeyUtils.userId(name));
+        return uidResolver.resolve(name) != null;
+    }
+
+    /**
+     * 用户名是否存在, 不依赖过滤器的判断, 用于登录
+     * @param name
+     * @return
+     */
+    public boolean isUserRegistered(String name) {
+        return uidResolver.resolveChecked(name) != null;
+    }
+
+    /**
+     * 批量查询用户id, 一次往返
+     * @param names 用户名
+     * @return 存在的用户名到用户id的映射
+     */
+    public Map<String, String> findUids(Collection<String> names) {
+        return uidResolver.resolveAll(names);
+    }
+
+    /**
+     * 查询帖子中@的用户的id, 过滤器判断不存在的用户名仍然查询redis, 一次往返
+     * @param names 用户名
+     * @return 存在的用户名到用户id的映射
+     */
+    public Map<String, String> findMentionedUids(Collection<String> names) {
+        return uidResolver.resolveAllChecked(names);
     }
 
     /**
@@ -149,7 +677,7 @@ public class UserDao {
      * @return 用户id
      */
     public String findUid(String name) {
-        return valueOps.get(KeyUtils.userId(name));
+        return uidResolver.resolve(name);
     }
 
     /**
@@ -158,65 +686,159 @@ public class UserDao {
      * @return
      */
     public Post findPost(String pid) {
+        Post post = postCache.get(Long.parseLong(pid));
+        if (post != null) {
+            return post;
+        }
         BoundHashOperations<String, String, String> postOps = template.boundHashOps(KeyUtils.post(pid));
+        post = toPost(pid, postOps.multiGet(Arrays.asList(POST_FIELDS)));
+        if (post == null) {
+            post = postArchive.find(Long.parseLong(pid));
+        }
+        if (post != null) {
+            postCache.put(post);
+        }
+        return post;
+    }
+
+    /**
+     * 把HMGET的结果转换为帖子
+     * @param pid
+     * @param values 按POST_FIELDS顺序排列的字段值
+     * @return 帖子不存在时返回null
+     */
+    static Post toPost(String pid, List<String> values) {
+        if (values == null || values.get(0) == null) {
+            return null;
+        }
         Post post = new Post();
-        String uid = postOps.get("uid");
-        String name = postOps.get("username");
-        String content = postOps.get("content");
-        String publishTime = postOps.get("publishTime");
         post.setId(Long.valueOf(pid));
-        post.setUid(Long.valueOf(uid));
-        post.setContent(content);
-        post.setPublishTime(Long.valueOf(publishTime));
-        post.setUsername(name);
+        post.setUid(Long.valueOf(values.get(0)));
+        post.setUsername(values.get(1));
+        post.setContent(values.get(2));
+        post.setPublishTime(Long.valueOf(values.get(3)));
         return post;
     }
 
     /**
      * 根据用户名查询用户
      * @param name 用户名
-     * @return 用户
+     * @return 用户, 不存在时返回null
      */
     public User findUser(String name) {
-        User user = new User();
-        String uid = findUid(name);
-        BoundHashOperations<String, String, String> userOps =
-                template.boundHashOps(KeyUtils.user(uid));
-        user.setId(Long.valueOf(uid));
-        user.setUsername(userOps.get("username"));
-        user.setPassword(userOps.get("password"));
-        // 粉丝数量
-        user.setFollower(followersSize(name));
-        // 关注数量
-        user.setFollowing(watchListSize(name));
-        return user;
+        return findUsers(Collections.singletonList(name)).get(name);
+    }
+
+    /**
+     * 批量查询用户
+     *   用户id一次解析, 用户信息和关注数, 粉丝数在一个pipeline中读取
+     * @param names 用户名
+     * @return 按names的顺序, 不包含不存在的用户
+     */
+    public Map<String, User> findUsers(Collection<String> names) {
+        Map<String, String> uids = findUids(names);
+        Map<String, User> users = new LinkedHashMap<>();
+        if (uids.isEmpty()) {
+            return users;
+        }
+        List<String> uidList = new ArrayList<>(uids.values());
+        Keys migrating = new Keys();
+        List<String> keys = new ArrayList<>(uidList.size() * 3);
+        for (String uid : uidList) {
+            keys.add(migrating.user(uid));
+            keys.add(migrating.followers(uid));
+            keys.add(migrating.following(uid));
+        }
+        migrating.ensure();
+        List<Object> results = template.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            for (int k = 0; k < keys.size(); k += 3) {
+                conn.hMGet(keys.get(k), "username", "password");
+                conn.zCard(keys.get(k + 1));
+                conn.zCard(keys.get(k + 2));
+            }
+            return null;
+        });
+        int i = 0;
+        for (String uid : uidList) {
+            @SuppressWarnings("unchecked")
+            List<String> values = (List<String>) results.get(i++);
+            Long follower = (Long) results.get(i++);
+            Long following = (Long) results.get(i++);
+            if (values.get(0) == null) {
+                continue;
+            }
+            User user = new User();
+            user.setId(Long.valueOf(uid));
+            user.setUsername(values.get(0));
+            user.setPassword(values.get(1));
+            // 粉丝数量
+            user.setFollower(follower.intValue());
+            // 关注数量
+            user.setFollowing(following.intValue());
+            users.put(user.getUsername(), user);
+        }
+        return users;
     }
 
     /**
      * 获取帖子
      * @param name
-     * @param start
-     * @param end
+     * @param before 查询比该游标更旧的帖子
+     * @param after 查询比该游标更新的帖子
+     * @param limit 每页帖子数
      * @return
      */
-    public List<Post> findPosts(String name, int start, int end) {
-        List<Post> list = new ArrayList<>(end - start + 1);
-        posts(findUid(name)).range(start, end).stream().forEach(
-                pid -> list.add(findPost(pid))
-        );
-        return list;
+    public Page findPosts(String name, String before, String after, int limit) {
+        return page(Collections.singletonList(postsKey(findUid(name))), false, before, after, limit);
     }
 
     /**
-     * 是否还有更多帖子
-     * @param name
-     * @param range
-     * @return
+     * 批量查询帖子
+     *   先查帖子缓存,未命中的帖子通过pipeline一次往返取回HMGET结果,
+     *   页面延迟只取决于一次网络往返,而不是帖子数量;
+     *   redis中不存在的帖子再查归档
+     * @param pids 帖子id列表
+     * @return 按pids顺序排列的帖子,已不存在的帖子会被忽略
      */
-    public boolean hasMorePosts(String name, Range range) {
-        int size = posts(findUid(name)).size();
-        range.setTotal(size);
-        return range.getEnd() < size - 1;
+    public List<Post> loadPosts(List<String> pids) {
+        Post[] found = new Post[pids.size()];
+        List<Integer> missing = new ArrayList<>();
+        for (int i = 0; i < pids.size(); i++) {
+            found[i] = postCache.get(Long.parseLong(pids.get(i)));
+            if (found[i] == null) {
+                missing.add(i);
+            }
+        }
+        if (!missing.isEmpty()) {
+            List<Object> results = template.executePipelined((RedisCallback<Object>) connection -> {
+                StringRedisConnection conn = (StringRedisConnection) connection;
+                for (int i : missing) {
+                    conn.hMGet(KeyUtils.post(pids.get(i)), POST_FIELDS);
+                }
+                return null;
+            });
+            for (int j = 0; j < missing.size(); j++) {
+                int i = missing.get(j);
+                @SuppressWarnings("unchecked")
+                List<String> values = (List<String>) results.get(j);
+                found[i] = toPost(pids.get(i), values);
+                if (found[i] == null) {
+                    // 已从redis移到归档的旧帖子
+                    found[i] = postArchive.find(Long.parseLong(pids.get(i)));
+                }
+                if (found[i] != null) {
+                    postCache.put(found[i]);
+                }
+            }
+        }
+        List<Post> list = new ArrayList<>(pids.size());
+        for (Post post : found) {
+            if (post != null) {
+                list.add(post);
+            }
+        }
+        return list;
     }
 
     /**
@@ -226,7 +848,7 @@ public class UserDao {
      */
     public String getPass(String name) {
         BoundHashOperations<String, String, String> userOps =
-                template.boundHashOps(KeyUtils.user(findUid(name)));
+                template.boundHashOps(userKey(findUid(name)));
         return userOps.get("password");
     }
 
@@ -237,10 +859,15 @@ public class UserDao {
      * @return
      */
     public void follow(String uName, String fName) {
-        String uid = valueOps.get(KeyUtils.userId(uName));
-        String fid = valueOps.get(KeyUtils.userId(fName)); // tom
-        followers(uid).addFirst(fid);
-        following(fid).addFirst(uid);
+        String uid = findUid(uName);
+        String fid = findUid(fName);
+        Keys keys = new Keys();
+        String followersKey = keys.followers(uid);
+        String followingKey = keys.following(fid);
+        keys.ensure();
+        double now = System.currentTimeMillis();
+        template.opsForZSet().add(followersKey, fid, now);
+        template.opsForZSet().add(followingKey, uid, now);
     }
 
     /**
@@ -252,8 +879,12 @@ public class UserDao {
     public void stopFollowing(String uName, String fName) {
         String uid = findUid(uName);
         String fid = findUid(fName);
-        followers(uid).remove(fid);
-        following(fid).remove(uid);
+        Keys keys = new Keys();
+        String followersKey = keys.followers(uid);
+        String followingKey = keys.following(fid);
+        keys.ensure();
+        template.opsForZSet().remove(followersKey, fid);
+        template.opsForZSet().remove(followingKey, uid);
     }
 
     /**
@@ -262,7 +893,7 @@ public class UserDao {
      * @return
      */
     public int followersSize(String name) {
-        return followers(findUid(name)).size();
+        return followers(findUid(name)).zCard().intValue();
     }
 
     /**
@@ -271,7 +902,40 @@ public class UserDao {
      * @return
      */
     public int watchListSize(String name) {
-        return following(findUid(name)).size();
+        return following(findUid(name)).zCard().intValue();
+    }
+
+    /**
+     * 查询个人信息页的版本, 一次pipeline往返
+     *   帖子只增不改, 用户帖子列表的版本, 粉丝数, 关注数和访问者的关注状态不变时页面内容不变;
+     *   与findHeads相同, 晚写入的较小帖子id不改变最新帖子id, 因此使用写入帖子时递增的版本号
+     * @param name 用户名
+     * @param viewer 访问者用户名, 未登录时为null
+     * @return 用户帖子列表的版本(还没有发过帖子时为null), 粉丝数, 关注数, 访问者是否已关注
+     */
+    public List<String> findProfileVersion(String name, String viewer) {
+        String uid = findUid(name);
+        String vid = viewer == null ? null : findUid(viewer);
+        Keys keys = new Keys();
+        String followersKey = keys.followers(uid);
+        String followingKey = keys.following(uid);
+        String viewerFollowingKey = vid == null ? null : keys.following(vid);
+        keys.ensure();
+        List<Object> results = template.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            conn.get(KeyUtils.postsVersion(uid));
+            conn.zCard(followersKey);
+            conn.zCard(followingKey);
+            if (viewerFollowingKey != null) {
+                conn.zScore(viewerFollowingKey, uid);
+            }
+            return null;
+        });
+        return Arrays.asList(
+                (String) results.get(0),
+                String.valueOf(results.get(1)),
+                String.valueOf(results.get(2)),
+                String.valueOf(results.size() > 3 && results.get(3) != null));
     }
 
     /**
@@ -283,34 +947,164 @@ public class UserDao {
     public boolean isFollowed(String uName, String fName) {
         String uid = findUid(uName);
         String fid = findUid(fName);
-        boolean b = following(fid).contains(uid);
-        return b;
+        return following(fid).score(uid) != null;
     }
 
     /**
-     * 粉丝列表
+     * 粉丝集合,分数为关注时间
      * @param uid
      * @return
      */
-    private RedisList<String> followers(String uid) {
-        return new DefaultRedisList<>(KeyUtils.followers(uid), template);
+    private BoundZSetOperations<String, String> followers(String uid) {
+        return template.boundZSetOps(followersKey(uid));
     }
 
     /**
-     * 关注列表
+     * 关注集合,分数为关注时间
      * @param uid
      * @return
      */
-    private RedisList<String> following(String uid) {
-        return new DefaultRedisList<>(KeyUtils.following(uid), template);
+    private BoundZSetOperations<String, String> following(String uid) {
+        return template.boundZSetOps(followingKey(uid));
     }
 
     /**
-     * 帖子列表
+     * 粉丝集合的键
      * @param uid
      * @return
      */
-    private RedisList<String> posts(String uid) {
-        return new DefaultRedisList<>(KeyUtils.posts(uid), template);
+    private String followersKey(String uid) {
+        Keys keys = new Keys();
+        String key = keys.followers(uid);
+        keys.ensure();
+        return key;
+    }
+
+    /**
+     * 关注集合的键
+     * @param uid
+     * @return
+     */
+    private String followingKey(String uid) {
+        Keys keys = new Keys();
+        String key = keys.following(uid);
+        keys.ensure();
+        return key;
+    }
+
+    /**
+     * 用户信息的键
+     * @param uid
+     * @return
+     */
+    private String userKey(String uid) {
+        Keys keys = new Keys();
+        String key = keys.user(uid);
+        keys.ensure();
+        return key;
+    }
+
+    /**
+     * 提到用户的帖子的有序集合
+     * @param uid
+     * @return
+     */
+    private String mentionsKey(String uid) {
+        Keys keys = new Keys();
+        String key = keys.mentions(uid);
+        keys.ensure();
+        return key;
+    }
+
+    /**
+     * 全部帖子的有序集合
+     * @return
+     */
+    private String postsKey() {
+        Keys keys = new Keys();
+        String key = keys.posts();
+        keys.ensure();
+        return key;
+    }
+
+    /**
+     * 用户帖子的有序集合
+     * @param uid
+     * @return
+     */
+    private String postsKey(String uid) {
+        Keys keys = new Keys();
+        String key = keys.posts(uid);
+        keys.ensure();
+        return key;
+    }
+
+    /**
+     * 一次操作用到的键
+     *   迁移完成前, 访问这些键之前调用ensure: 先把旧键改为带hash tag的键名, 再把旧的list转换为sorted set,
+     *   每种迁移最多一次往返, 而不是每个键一次; 迁移完成后ensure不访问redis.
+     *   ensure不能在pipeline的回调中调用, 迁移的脚本会使用另一个连接.
+     */
+    private class Keys {
+
+        // 用户键, 需要改为带hash tag的键名
+        private final List<String> userKeys = new ArrayList<>();
+        // 关注关系的键, 需要从list转换为sorted set
+        private final List<String> followKeys = new ArrayList<>();
+        // 帖子id列表和时间线的键, 需要从list转换为sorted set
+        private final List<String> postsKeys = new ArrayList<>();
+
+        String user(String uid) {
+            return add(KeyUtils.user(uid), null);
+        }
+
+        String mentions(String uid) {
+            return add(KeyUtils.mentions(uid), null);
+        }
+
+        String followers(String uid) {
+            return add(KeyUtils.followers(uid), followKeys);
+        }
+
+        String following(String uid) {
+            return add(KeyUtils.following(uid), followKeys);
+        }
+
+        String posts(String uid) {
+            return add(KeyUtils.posts(uid), postsKeys);
+        }
+
+        String timeline(String uid) {
+            return add(KeyUtils.timeline(uid), postsKeys);
+        }
+
+        /**
+         * 全局帖子列表, 不是用户键
+         */
+        String posts() {
+            String key = KeyUtils.posts();
+            postsKeys.add(key);
+            return key;
+        }
+
+        private String add(String key, List<String> converted) {
+            userKeys.add(key);
+            if (converted != null) {
+                converted.add(key);
+            }
+            return key;
+        }
+
+        void ensure() {
+            if (!userKeys.isEmpty()) {
+                hashTagMigrator.ensure(userKeys);
+            }
+            if (!followKeys.isEmpty()) {
+                zSetMigrator.ensureFollow(followKeys);
+            }
+            if (!postsKeys.isEmpty()) {
+                zSetMigrator.ensurePosts(postsKeys);
+            }
+        }
     }
 }
@@ -0,0 +1,184 @@
+package retwis.dao;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Consumer;
+
+/**
+ * 合并并发的写操作
+ *   调用线程把数据放入队列后等待, 后台线程在等待时间(linger)内收集数据,
+ *   达到批大小或超过等待时间后一次写入, 写入成功后通知这一批的所有调用线程.
+ *   停止后不再接受写入; 调用线程最多等待timeoutMillis, 后台线程出现异常时不会让调用线程一直等待.
+ * @param <T>
+ */
+@Slf4j
+public class WriteBatcher<T> {
+
+    private final BlockingQueue<Pending<T>> queue = new LinkedBlockingQueue<>();
+    // 一次写入一批数据
+    private final Consumer<List<T>> writer;
+    private final String name;
+    private final int batchSize;
+    private final long lingerNanos;
+    // 调用线程等待写入完成的最长时间
+    private final long timeoutMillis;
+
+    private final Thread flusher;
+    private volatile boolean running = true;
+
+    private final DistributionSummary batchSizes;
+    private final Timer flushTimer;
+    private final Counter written;
+
+    /**
+     * @param name 名称,作为线程名和监控指标的前缀
+     * @param writer 写入一批数据
+     * @param batchSize 每批最多的数据量
+     * @param lingerMillis 收集一批数据最多等待的时间
+     * @param timeoutMillis 调用线程等待写入完成的最长时间
+     * @param meterRegistry
+     */
+    public WriteBatcher(String name, Consumer<List<T>> writer, int batchSize, long lingerMillis, long timeoutMillis,
+                        MeterRegistry meterRegistry) {
+        this.writer = writer;
+        this.name = name;
+        this.batchSize = batchSize;
+        this.lingerNanos = TimeUnit.MILLISECONDS.toNanos(lingerMillis);
+        this.timeoutMillis = timeoutMillis;
+        this.batchSizes = DistributionSummary.builder("retwis." + name + ".batch.size")
+                .publishPercentileHistogram()
+                .register(meterRegistry);
+        this.flushTimer = Timer.builder("retwis." + name + ".batch.flush")
+                .publishPercentileHistogram()
+                .register(meterRegistry);
+        this.written = meterRegistry.counter("retwis." + name + ".written");
+        this.flusher = new Thread(this::run, name + "-batcher");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    /**
+     * 写入数据,等待所在的一批写入完成
+     * @param item
+     * @throws IllegalStateException 已停止, 或者超过timeoutMillis没有写入完成
+     */
+    public void write(T item) {
+        if (!running) {
+            throw new IllegalStateException(name + "的批量写入已停止");
+        }
+        Pending<T> pending = new Pending<>(item, new CompletableFuture<>());
+        queue.add(pending);
+        // 与shutdown同时发生时, 后台线程可能在入队之前已经退出
+        if (!running && !flusher.isAlive() && queue.remove(pending)) {
+            throw new IllegalStateException(name + "的批量写入已停止");
+        }
+        try {
+            pending.future.get(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IllegalStateException(cause);
+        } catch (TimeoutException e) {
+            // 还在队列中时不再写入, 已被取出的这一批可能仍会写入
+            queue.remove(pending);
+            throw new IllegalStateException(name + "的批量写入超过" + timeoutMillis + "ms没有完成");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            queue.remove(pending);
+            throw new IllegalStateException(name + "的批量写入被中断", e);
+        }
+    }
+
+    /**
+     * 停止后台线程,写完队列中剩余的数据
+     */
+    public void shutdown() {
+        running = false;
+        flusher.interrupt();
+        try {
+            flusher.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void run() {
+        List<Pending<T>> batch = new ArrayList<>(batchSize);
+        while (running || !queue.isEmpty()) {
+            try {
+                Pending<T> first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                long deadline = System.nanoTime() + lingerNanos;
+                while (batch.size() < batchSize) {
+                    long remaining = deadline - System.nanoTime();
+                    Pending<T> next = remaining > 0 ? queue.poll(remaining, TimeUnit.NANOSECONDS) : null;
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                }
+            } catch (InterruptedException e) {
+                // 停止时不再等待, 写完已收集和队列中剩余的数据
+                queue.drainTo(batch, batchSize - batch.size());
+            }
+            if (!batch.isEmpty()) {
+                flush(batch);
+                batch.clear();
+            }
+        }
+    }
+
+    private void flush(List<Pending<T>> batch) {
+        List<T> items = new ArrayList<>(batch.size());
+        for (Pending<T> pending : batch) {
+            items.add(pending.item);
+        }
+        long begin = System.nanoTime();
+        try {
+            writer.accept(items);
+        } catch (Throwable e) {
+            // Error也通知调用线程, 后台线程继续处理之后的数据
+            log.error("批量写入{}条数据失败", items.size(), e);
+            for (Pending<T> pending : batch) {
+                pending.future.completeExceptionally(e);
+            }
+            return;
+        }
+        flushTimer.record(System.nanoTime() - begin, TimeUnit.NANOSECONDS);
+        batchSizes.record(items.size());
+        written.increment(items.size());
+        for (Pending<T> pending : batch) {
+            pending.future.complete(null);
+        }
+    }
+
+    private static class Pending<T> {
+        private final T item;
+        private final CompletableFuture<Void> future;
+
+        Pending(T item, CompletableFuture<Void> future) {
+            this.item = item;
+            this.future = future;
+        }
+    }
+}
@@ -0,0 +1,267 @@
+package retwis.dao;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.redis.core.Cursor;
+import org.springframework.data.redis.core.ScanOptions;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.stereotype.Component;
+import retwis.util.KeyUtils;
+import retwis.util.ScriptUtils;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * list到sorted set的迁移
+ *   旧版本用list保存关注关系和帖子id列表, 新版本改为sorted set:
+ *     关注关系以关注时间为分数, 帖子id列表以帖子id为分数.
+ *   应用启动后在后台线程用SCAN分批转换旧的list, 期间应用照常提供服务:
+ *   迁移完成前, 每次访问这些键都会先确保该键已转换.
+ *   超过chunkSize的list(如全局帖子列表)分块转换, 每个脚本只转换一段, 转换期间redis仍然可以处理其他命令;
+ *   访问这个键的请求会等到转换完成. 中途停止时已转换的部分留在key:migrating中, 重启后继续分块转换.
+ *   迁移可能由其他节点完成, 或者本节点没有开启后台迁移, 因此迁移完成前每秒最多检查一次完成标记,
+ *   标记存在后不再逐个转换.
+ *   SCAN按新的hash tag键名匹配, 因此在HashTagMigrator完成之后进行; 与之相同, 只能在单机模式下迁移.
+ */
+@Slf4j
+@Component
+public class ZSetMigrator {
+
+    // 检查迁移完成标记的最小间隔
+    private static final long MARKER_CHECK_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    @SuppressWarnings("rawtypes")
+    private static final RedisScript<List> LIST_TO_ZSET = ScriptUtils.load("scripts/list_to_zset.lua", List.class);
+    private static final RedisScript<Long> LIST_TO_ZSET_CHUNK =
+            ScriptUtils.load("scripts/list_to_zset_chunk.lua", Long.class);
+
+    private final StringRedisTemplate template;
+    // 用户键名的迁移
+    private final HashTagMigrator hashTagMigrator;
+
+    // 是否在启动后执行后台迁移
+    private final boolean enabled;
+    // 每批转换的键数量
+    private final int batchSize;
+    // 每批之间的停顿,避免迁移占用过多redis资源
+    private final long pauseMillis;
+    // 一个脚本最多转换的元素数
+    private final int chunkSize;
+    // 是否为单机模式
+    private final boolean standalone;
+
+    // 关注关系
+    private final Migration follow = new Migration("follow", KeyUtils.followMigrated(), "time",
+            KeyUtils.followPattern());
+    // 全局帖子列表,用户帖子列表和时间线
+    private final Migration posts = new Migration("posts", KeyUtils.postsMigrated(), "member",
+            KeyUtils.posts(), KeyUtils.postsPattern(), KeyUtils.timelinePattern());
+
+    @Autowired
+    public ZSetMigrator(StringRedisTemplate template,
+                        HashTagMigrator hashTagMigrator,
+                        @Value("${retwis.migration.enabled:true}") boolean enabled,
+                        @Value("${retwis.migration.batch-size:100}") int batchSize,
+                        @Value("${retwis.migration.pause-millis:50}") long pauseMillis,
+                        @Value("${retwis.migration.chunk-size:1000}") int chunkSize,
+                        @Value("${retwis.redis.topology:standalone}") String topology) {
+        this.template = template;
+        this.hashTagMigrator = hashTagMigrator;
+        this.enabled = enabled;
+        this.batchSize = batchSize;
+        this.pauseMillis = pauseMillis;
+        this.chunkSize = chunkSize;
+        this.standalone = "standalone".equals(topology);
+    }
+
+    /**
+     * 应用启动后开始迁移
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void start() {
+        follow.start();
+        posts.start();
+    }
+
+    /**
+     * 确保关注关系的键已经转换为sorted set
+     * @param keys
+     */
+    public void ensureFollow(Collection<String> keys) {
+        follow.ensureMigrated(keys);
+    }
+
+    /**
+     * 确保帖子id列表的键已经转换为sorted set
+     * @param keys
+     */
+    public void ensurePosts(Collection<String> keys) {
+        posts.ensureMigrated(keys);
+    }
+
+    private class Migration {
+
+        private final String name;
+        // 迁移完成的标记
+        private final String doneKey;
+        // 分数的计算方式, 见list_to_zset.lua
+        private final String scoreBy;
+        // 需要迁移的键的匹配模式
+        private final String[] patterns;
+
+        // 迁移是否已完成
+        private volatile boolean migrated;
+        // 上次检查完成标记的时间
+        private volatile long markerCheckedAt = System.nanoTime();
+
+        Migration(String name, String doneKey, String scoreBy, String... patterns) {
+            this.name = name;
+            this.doneKey = doneKey;
+            this.scoreBy = scoreBy;
+            this.patterns = patterns;
+        }
+
+        void start() {
+            if (Boolean.TRUE.equals(template.hasKey(doneKey))) {
+                migrated = true;
+                return;
+            }
+            if (!standalone && !Boolean.TRUE.equals(template.hasKey(KeyUtils.globalUid()))) {
+                // 还没有注册过用户的新部署, 没有需要迁移的键
+                template.opsForValue().set(doneKey, String.valueOf(System.currentTimeMillis()));
+                migrated = true;
+                return;
+            }
+            if (!standalone) {
+                throw new IllegalStateException(name + "迁移未完成, 请先在单机redis上完成迁移再切换到cluster或分片模式");
+            }
+            if (!enabled) {
+                return;
+            }
+            Thread thread = new Thread(this::migrate, name + "-migrator");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        void ensureMigrated(Collection<String> keys) {
+            if (migrated || markerExists()) {
+                return;
+            }
+            convert(new ArrayList<>(keys));
+        }
+
+        /**
+         * 距上次检查超过MARKER_CHECK_NANOS时重新读取完成标记, 并发的调用只有一个会读取
+         * @return 标记是否存在
+         */
+        private boolean markerExists() {
+            long checkedAt = markerCheckedAt;
+            long now = System.nanoTime();
+            if (now - checkedAt < MARKER_CHECK_NANOS) {
+                return false;
+            }
+            synchronized (this) {
+                if (markerCheckedAt != checkedAt) {
+                    return migrated;
+                }
+                markerCheckedAt = now;
+            }
+            if (Boolean.TRUE.equals(template.hasKey(doneKey))) {
+                migrated = true;
+                log.info("{}迁移已完成, 不再逐个转换", name);
+            }
+            return migrated;
+        }
+
+        /**
+         * 用SCAN遍历所有需要迁移的键,分批转换
+         */
+        private void migrate() {
+            long converted = 0;
+            try {
+                hashTagMigrator.awaitMigrated();
+                for (String pattern : patterns) {
+                    converted += migrate(pattern);
+                }
+                template.opsForValue().set(doneKey, String.valueOf(System.currentTimeMillis()));
+                migrated = true;
+                log.info("{}迁移完成, 共转换{}个键", name, converted);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (Exception e) {
+                log.error("{}迁移失败, 已转换{}个键", name, converted, e);
+            }
+        }
+
+        private long migrate(String pattern) throws Exception {
+            ScanOptions options = ScanOptions.scanOptions()
+                    .match(pattern)
+                    .count(batchSize)
+                    .build();
+            long converted = 0;
+            try (Cursor<byte[]> cursor = template.executeWithStickyConnection(
+                    connection -> connection.scan(options))) {
+                List<String> batch = new ArrayList<>(batchSize);
+                while (cursor.hasNext()) {
+                    batch.add(new String(cursor.next(), StandardCharsets.UTF_8));
+                    if (batch.size() == batchSize) {
+                        converted += convert(batch);
+                        batch.clear();
+                        Thread.sleep(pauseMillis);
+                    }
+                }
+                converted += convert(batch);
+            }
+            return converted;
+        }
+
+        /**
+         * 转换一批键,已经是sorted set的键不受影响
+         * @param keys
+         * @return 实际转换的键数量
+         */
+        private long convert(List<String> keys) {
+            if (keys.isEmpty()) {
+                return 0;
+            }
+            List<?> result = template.execute(LIST_TO_ZSET, keys,
+                    String.valueOf(System.currentTimeMillis()), scoreBy, String.valueOf(chunkSize));
+            if (result == null || result.isEmpty()) {
+                return 0;
+            }
+            long converted = (Long) result.get(0);
+            for (Object key : result.subList(1, result.size())) {
+                convertInChunks((String) key);
+                converted++;
+            }
+            return converted;
+        }
+
+        /**
+         * 分块转换一个较长的list, 每次往返转换chunkSize个元素
+         *   并发的调用各自转换不同的段, 都在转换完成后返回
+         * @param key
+         */
+        private void convertInChunks(String key) {
+            long begin = System.currentTimeMillis();
+            List<String> keys = Arrays.asList(key, KeyUtils.migrating(key));
+            int chunks = 0;
+            Long done;
+            do {
+                done = template.execute(LIST_TO_ZSET_CHUNK, keys,
+                        String.valueOf(begin), scoreBy, String.valueOf(chunkSize));
+                chunks++;
+            } while (done == null || done == 0);
+            log.info("{}分{}次转换为sorted set, 耗时{}ms", key, chunks, System.currentTimeMillis() - begin);
+        }
+    }
+}
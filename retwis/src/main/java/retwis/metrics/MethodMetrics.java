@@ -0,0 +1,98 @@
+package retwis.metrics;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.aopalliance.intercept.MethodInterceptor;
+import org.aopalliance.intercept.MethodInvocation;
+import org.springframework.aop.framework.Advised;
+import org.springframework.aop.framework.ProxyFactory;
+import org.springframework.aop.support.AopUtils;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.config.BeanPostProcessor;
+import org.springframework.core.annotation.AnnotatedElementUtils;
+import org.springframework.stereotype.Repository;
+import org.springframework.stereotype.Service;
+import org.springframework.util.ReflectionUtils;
+
+import java.lang.reflect.Method;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 记录dao和service每个方法的调用耗时
+ *   包装@Repository和@Service的bean, 每个public方法一个计时器:
+ *     retwis.dao / retwis.service, 标签class, method, exception(正常返回时为none)
+ *   计时器同时给出调用次数, 按exception标签可以得到失败次数.
+ *   同一个bean内部的方法调用不经过代理, 不会重复计时.
+ */
+public class MethodMetrics implements BeanPostProcessor {
+
+    private final ObjectProvider<MeterRegistry> meterRegistry;
+
+    public MethodMetrics(ObjectProvider<MeterRegistry> meterRegistry) {
+        this.meterRegistry = meterRegistry;
+    }
+
+    @Override
+    public Object postProcessAfterInitialization(Object bean, String beanName) {
+        Class<?> type = AopUtils.getTargetClass(bean);
+        String name;
+        if (AnnotatedElementUtils.hasAnnotation(type, Repository.class)) {
+            name = "retwis.dao";
+        } else if (AnnotatedElementUtils.hasAnnotation(type, Service.class)) {
+            name = "retwis.service";
+        } else {
+            return bean;
+        }
+        TimingInterceptor interceptor = new TimingInterceptor(name, type.getSimpleName());
+        // @Repository的bean已经被异常转换包装过, 加在已有的代理上
+        if (bean instanceof Advised && !((Advised) bean).isFrozen()) {
+            ((Advised) bean).addAdvice(interceptor);
+            return bean;
+        }
+        ProxyFactory factory = new ProxyFactory(bean);
+        factory.setProxyTargetClass(true);
+        factory.addAdvice(interceptor);
+        return factory.getProxy(type.getClassLoader());
+    }
+
+    private class TimingInterceptor implements MethodInterceptor {
+
+        private final String name;
+        private final String className;
+        // 正常返回的计时器, 按方法缓存
+        private final Map<Method, Timer> timers = new ConcurrentHashMap<>();
+
+        TimingInterceptor(String name, String className) {
+            this.name = name;
+            this.className = className;
+        }
+
+        @Override
+        public Object invoke(MethodInvocation invocation) throws Throwable {
+            Method method = invocation.getMethod();
+            if (ReflectionUtils.isObjectMethod(method)) {
+                return invocation.proceed();
+            }
+            long begin = System.nanoTime();
+            try {
+                Object result = invocation.proceed();
+                timers.computeIfAbsent(method, m -> timer(m, "none"))
+                        .record(System.nanoTime() - begin, TimeUnit.NANOSECONDS);
+                return result;
+            } catch (Throwable e) {
+                timer(method, e.getClass().getSimpleName()).record(System.nanoTime() - begin, TimeUnit.NANOSECONDS);
+                throw e;
+            }
+        }
+
+        private Timer timer(Method method, String exception) {
+            return Timer.builder(name)
+                    .tag("class", className)
+                    .tag("method", method.getName())
+                    .tag("exception", exception)
+                    .register(meterRegistry.getObject());
+        }
+    }
+}
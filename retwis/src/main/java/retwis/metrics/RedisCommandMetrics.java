@@ -0,0 +1,180 @@
+package retwis.metrics;
+
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.config.BeanPostProcessor;
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.connection.RedisConnectionFactory;
+import org.springframework.data.redis.connection.jedis.JedisConnectionFactory;
+import org.springframework.util.ClassUtils;
+import org.springframework.util.ReflectionUtils;
+import redis.clients.jedis.util.Pool;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.ToDoubleFunction;
+
+/**
+ * redis命令的耗时和连接使用情况
+ *   包装RedisConnectionFactory, 在它返回的连接上:
+ *     每条命令记入计时器retwis.redis.command, 标签command为连接上的方法名(如zRevRangeByScore, evalSha);
+ *     pipeline中的命令不单独计时, 整个pipeline记为command=pipeline, 包含的命令数记入retwis.redis.pipeline.commands.
+ *   retwis.redis.connections.active为当前借出的连接数;
+ *   使用jedis连接池时另有retwis.redis.pool.active, idle, waiters.
+ *   每次往返同时计入当前线程的RedisRequestStats.
+ */
+public class RedisCommandMetrics implements BeanPostProcessor {
+
+    // 不计时的连接方法: 不访问redis的方法, 以及使用jedis时会一直阻塞的订阅
+    private static final Set<String> LOCAL_METHODS = new HashSet<>(Arrays.asList(
+            "close", "isClosed", "getNativeConnection", "isQueueing", "isPipelined",
+            "isSubscribed", "getSubscription", "getSentinelConnection", "subscribe", "pSubscribe",
+            "equals", "hashCode", "toString"));
+
+    private final ObjectProvider<MeterRegistry> meterRegistry;
+
+    private final Map<String, Timer> timers = new ConcurrentHashMap<>();
+    private final AtomicInteger activeConnections = new AtomicInteger();
+    private volatile DistributionSummary pipelineCommands;
+
+    public RedisCommandMetrics(ObjectProvider<MeterRegistry> meterRegistry) {
+        this.meterRegistry = meterRegistry;
+    }
+
+    @Override
+    public Object postProcessAfterInitialization(Object bean, String beanName) {
+        if (!(bean instanceof RedisConnectionFactory)) {
+            return bean;
+        }
+        MeterRegistry registry = meterRegistry.getObject();
+        Gauge.builder("retwis.redis.connections.active", activeConnections, AtomicInteger::get)
+                .register(registry);
+        pipelineCommands = DistributionSummary.builder("retwis.redis.pipeline.commands").register(registry);
+        if (bean instanceof JedisConnectionFactory) {
+            registerPoolGauges((JedisConnectionFactory) bean, registry);
+        }
+        return Proxy.newProxyInstance(bean.getClass().getClassLoader(),
+                ClassUtils.getAllInterfacesForClass(bean.getClass()),
+                (proxy, method, args) -> {
+                    Object result = invoke(bean, method, args);
+                    if (result instanceof RedisConnection) {
+                        return timedConnection((RedisConnection) result);
+                    }
+                    return result;
+                });
+    }
+
+    /**
+     * jedis连接池的使用情况, 连接池没有公开的访问方法, 通过反射读取
+     * @param factory
+     * @param registry
+     */
+    private static void registerPoolGauges(JedisConnectionFactory factory, MeterRegistry registry) {
+        Field field = ReflectionUtils.findField(JedisConnectionFactory.class, "pool");
+        if (field == null) {
+            return;
+        }
+        ReflectionUtils.makeAccessible(field);
+        poolGauge(registry, "retwis.redis.pool.active", factory, field, Pool::getNumActive);
+        poolGauge(registry, "retwis.redis.pool.idle", factory, field, Pool::getNumIdle);
+        poolGauge(registry, "retwis.redis.pool.waiters", factory, field, Pool::getNumWaiters);
+    }
+
+    private static void poolGauge(MeterRegistry registry, String name, JedisConnectionFactory factory,
+                                  Field field, ToDoubleFunction<Pool<?>> value) {
+        Gauge.builder(name, factory, f -> {
+            Pool<?> pool = (Pool<?>) ReflectionUtils.getField(field, f);
+            return pool == null ? Double.NaN : value.applyAsDouble(pool);
+        }).register(registry);
+    }
+
+    private RedisConnection timedConnection(RedisConnection connection) {
+        activeConnections.incrementAndGet();
+        InvocationHandler handler = new InvocationHandler() {
+            // pipeline开始的时间, 不在pipeline中时为0; 每个连接同时只被一个线程使用
+            private long pipelineBegin;
+            private int pipelined;
+            private boolean closed;
+
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                String name = method.getName();
+                if (name.equals("close")) {
+                    if (!closed) {
+                        closed = true;
+                        activeConnections.decrementAndGet();
+                    }
+                    return RedisCommandMetrics.invoke(connection, method, args);
+                }
+                if (name.equals("openPipeline")) {
+                    pipelineBegin = System.nanoTime();
+                    pipelined = 0;
+                    return RedisCommandMetrics.invoke(connection, method, args);
+                }
+                if (name.equals("closePipeline")) {
+                    long begin = pipelineBegin;
+                    pipelineBegin = 0;
+                    try {
+                        return RedisCommandMetrics.invoke(connection, method, args);
+                    } finally {
+                        long elapsed = System.nanoTime() - begin;
+                        timer("pipeline").record(elapsed, TimeUnit.NANOSECONDS);
+                        pipelineCommands.record(pipelined);
+                        RedisRequestStats.record(pipelined, elapsed);
+                    }
+                }
+                if (LOCAL_METHODS.contains(name)) {
+                    return RedisCommandMetrics.invoke(connection, method, args);
+                }
+                if (pipelineBegin != 0) {
+                    pipelined++;
+                    return RedisCommandMetrics.invoke(connection, method, args);
+                }
+                long begin = System.nanoTime();
+                try {
+                    return RedisCommandMetrics.invoke(connection, method, args);
+                } finally {
+                    // execute(command, args)按实际命令名记录
+                    String command = name.equals("execute") && args.length > 0 && args[0] instanceof String
+                            ? (String) args[0] : name;
+                    long elapsed = System.nanoTime() - begin;
+                    timer(command).record(elapsed, TimeUnit.NANOSECONDS);
+                    RedisRequestStats.record(1, elapsed);
+                }
+            }
+        };
+        return (RedisConnection) Proxy.newProxyInstance(connection.getClass().getClassLoader(),
+                ClassUtils.getAllInterfacesForClass(connection.getClass()), handler);
+    }
+
+    private Timer timer(String command) {
+        Timer timer = timers.get(command);
+        if (timer == null) {
+            timer = timers.computeIfAbsent(command, c -> Timer.builder("retwis.redis.command")
+                    .tag("command", c)
+                    .register(meterRegistry.getObject()));
+        }
+        return timer;
+    }
+
+    private static Object invoke(Object target, Method method, Object[] args) throws Throwable {
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException e) {
+            throw e.getTargetException();
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package retwis.metrics;
+
+import lombok.Getter;
+
+/**
+ * 一次http请求中访问redis的统计
+ *   由RedisCommandMetrics在请求线程上累加, 非pipeline的每条命令和整个pipeline各算一次往返.
+ *   推送线程池, 合并写入等其他线程上的访问不计入.
+ */
+@Getter
+public class RedisRequestStats {
+
+    private static final ThreadLocal<RedisRequestStats> CURRENT = new ThreadLocal<>();
+
+    // 往返次数
+    private int roundTrips;
+    // 命令数, pipeline中的每条命令都计入
+    private int commands;
+    // 等待redis的累计时间
+    private long nanos;
+
+    /**
+     * 开始统计当前线程
+     * @return
+     */
+    public static RedisRequestStats begin() {
+        RedisRequestStats stats = new RedisRequestStats();
+        CURRENT.set(stats);
+        return stats;
+    }
+
+    /**
+     * 当前线程的统计, 未开始时为null
+     * @return
+     */
+    public static RedisRequestStats current() {
+        return CURRENT.get();
+    }
+
+    /**
+     * 结束统计当前线程
+     * @return 未开始时为null
+     */
+    public static RedisRequestStats end() {
+        RedisRequestStats stats = CURRENT.get();
+        CURRENT.remove();
+        return stats;
+    }
+
+    /**
+     * 记录一次往返
+     * @param commands 包含的命令数
+     * @param nanos 耗时
+     */
+    static void record(int commands, long nanos) {
+        RedisRequestStats stats = CURRENT.get();
+        if (stats != null) {
+            stats.roundTrips++;
+            stats.commands += commands;
+            stats.nanos += nanos;
+        }
+    }
+}
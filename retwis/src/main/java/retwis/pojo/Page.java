@@ -0,0 +1,47 @@
+package retwis.pojo;
+
+import lombok.Data;
+
+import java.util.List;
+
+/**
+ * 按游标分页的帖子
+ *   游标是对调用方不透明的字符串, 内部为帖子id的36进制表示.
+ *   翻页只依赖游标所在的帖子id, 不需要总数, 翻到多深的位置代价都一样.
+ */
+@Data
+public class Page {
+
+    private List<Post> posts;
+
+    // 查询更新的帖子的游标, 没有更新的帖子时为null
+    private String newer;
+
+    // 查询更旧的帖子的游标, 没有更旧的帖子时为null
+    private String older;
+
+    /**
+     * 把帖子id编码为游标
+     * @param pid
+     * @return
+     */
+    public static String cursor(long pid) {
+        return Long.toString(pid, Character.MAX_RADIX);
+    }
+
+    /**
+     * 解析游标
+     * @param cursor
+     * @return 游标为空或格式错误时返回null
+     */
+    public static Long parseCursor(String cursor) {
+        if (cursor == null || cursor.isEmpty()) {
+            return null;
+        }
+        try {
+            return Long.parseLong(cursor, Character.MAX_RADIX);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+}
@@ -2,16 +2,23 @@ package retwis.service;
 
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.core.task.TaskExecutor;
 import org.springframework.stereotype.Service;
+import retwis.cache.UserCache;
 import retwis.dao.UserDao;
+import retwis.pojo.Page;
 import retwis.pojo.Post;
-import retwis.pojo.Range;
 import retwis.pojo.User;
+import retwis.util.ContentUtils;
 import retwis.util.MD5Utils;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
 import java.util.List;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.Map;
+import java.util.Set;
 
 @Slf4j
 @Service
@@ -19,40 +26,61 @@ public class UserService {
 
     private UserDao userDao;
 
-    private Pattern mention = Pattern.compile("@[\\w]+");
+    // 用户信息的本地缓存
+    private UserCache userCache;
+
+    // 推送帖子到粉丝时间线的线程池
+    private TaskExecutor fanoutExecutor;
 
     @Autowired
-    public UserService(UserDao userDao) {
+    public UserService(UserDao userDao,
+                       UserCache userCache,
+                       @Qualifier("fanoutExecutor") TaskExecutor fanoutExecutor) {
         this.userDao = userDao;
+        this.userCache = userCache;
+        this.fanoutExecutor = fanoutExecutor;
     }
 
     public User getUser(String name) {
-        return userDao.findUser(name);
+        return userCache.get(name, userDao::findUser);
     }
 
     /**
      * 获取用户帖子
      * @param name
-     * @param range
+     * @param before 查询比该游标更旧的帖子
+     * @param after 查询比该游标更新的帖子
+     * @param size 每页帖子数
      * @return
      */
-    public List<Post> getPosts(String name, Range range) {
-        return userDao.findPosts(name, range.getStart(), range.getEnd());
+    public Page getPosts(String name, String before, String after, int size) {
+        return userDao.findPosts(name, before, after, size);
     }
 
-    public boolean hasMorePosts(String name, Range range) {
-        boolean b = userDao.hasMorePosts(name, range);
-        range.checkValid();
-        return b;
+    /**
+     * 获取用户主页时间线
+     * @param name
+     * @param before 查询比该游标更旧的帖子
+     * @param after 查询比该游标更新的帖子
+     * @param size 每页帖子数
+     * @return
+     */
+    public Page getTimeline(String name, String before, String after, int size) {
+        return userDao.findTimeline(name, before, after, size);
     }
 
     /**
      * 注册用户
      * @param username
      * @param password
+     * @return 用户名已存在时返回false
      */
-    public void regUser(String username, String password) {
-        userDao.registration(username, MD5Utils.saltAndMD5(password));
+    public boolean regUser(String username, String password) {
+        if (userDao.registration(username, MD5Utils.saltAndMD5(password)) == null) {
+            return false;
+        }
+        userCache.invalidate(username);
+        return true;
     }
 
     /**
@@ -70,8 +98,32 @@ public class UserService {
      * @param post
      */
     public void addPost(Post post) {
-        post.setContent(handleContent(post.getContent()));
-        post.setId(Long.valueOf(userDao.savePost(post)));
+        String uid = String.valueOf(post.getUid());
+        List<int[]> spans = new ArrayList<>();
+        Map<String, String> mentioned = findMentioned(post.getContent(), spans);
+        post.setContent(ContentUtils.render(post.getContent(), spans, mentioned.keySet()));
+        String pid = userDao.savePost(post);
+        post.setId(Long.valueOf(pid));
+        // 提到自己的帖子不加入自己的提及列表
+        Set<String> mentionUids = new LinkedHashSet<>(mentioned.values());
+        mentionUids.remove(uid);
+        // 异步推送到粉丝的时间线和被提到的用户
+        fanoutExecutor.execute(() -> {
+            userDao.fanOut(uid, pid);
+            userDao.addMentions(mentionUids, pid);
+        });
+    }
+
+    /**
+     * 获取提到用户的帖子
+     * @param name
+     * @param before 查询比该游标更旧的帖子
+     * @param after 查询比该游标更新的帖子
+     * @param size 每页帖子数
+     * @return
+     */
+    public Page getMentions(String name, String before, String after, int size) {
+        return userDao.findMentions(name, before, after, size);
     }
 
     /**
@@ -91,6 +143,8 @@ public class UserService {
      */
     public boolean follow(String uName, String fName) {
         userDao.follow(uName, fName);
+        userCache.invalidate(uName);
+        userCache.invalidate(fName);
         return true;
     }
 
@@ -102,18 +156,20 @@ public class UserService {
      */
     public boolean stopFollowing(String uName, String fName) {
         userDao.stopFollowing(uName, fName);
+        userCache.invalidate(uName);
+        userCache.invalidate(fName);
         return true;
     }
 
     /**
      * 查询帖子,分页
-     * @param range
+     * @param before 查询比该游标更旧的帖子
+     * @param after 查询比该游标更新的帖子
+     * @param size 每页帖子数
      * @return
      */
-    public List<Post> findPosts(Range range) {
-        range.setTotal(userDao.postsSize());
-        range.checkValid();
-        return userDao.findNewPosts(range.getStart(), range.getEnd());
+    public Page findPosts(String before, String after, int size) {
+        return userDao.findNewPosts(before, after, size);
     }
 
     /**
@@ -122,7 +178,35 @@ public class UserService {
      * @return
      */
     public List<User> findUsers(int size) {
-        return userDao.findUsers(size);
+        return findUsers(userDao.findUsernames(size));
+    }
+
+    /**
+     * 根据用户名批量查询用户
+     * @param names
+     * @return 按names的顺序, 不包含不存在的用户
+     */
+    public List<User> findUsers(List<String> names) {
+        return new ArrayList<>(userCache.getAll(names, userDao::findUsers).values());
+    }
+
+    /**
+     * 查询全局帖子列表的版本和最近注册的用户名
+     * @param size 用户名数量
+     * @return 第一个元素为帖子列表的版本, 还没有发过帖子时为null; 之后为最近注册的用户名
+     */
+    public List<String> findHeads(int size) {
+        return userDao.findHeads(size);
+    }
+
+    /**
+     * 查询个人信息页的版本
+     * @param name 用户名
+     * @param viewer 访问者用户名, 未登录时为null
+     * @return 用户帖子列表的版本(还没有发过帖子时为null), 粉丝数, 关注数, 访问者是否已关注
+     */
+    public List<String> getProfileVersion(String name, String viewer) {
+        return userDao.findProfileVersion(name, viewer);
     }
 
     /**
@@ -144,7 +228,7 @@ public class UserService {
      * @return
      */
     public boolean auth(String username, String password) {
-        if (!userDao.isUserValid(username)) {
+        if (!userDao.isUserRegistered(username)) {
             // 不存在该用户
             return false;
         }
@@ -152,23 +236,14 @@ public class UserService {
     }
 
     /**
-     * 处理@
-     * @param content
-     * @return
+     * 找出帖子中@的用户
+     *   所有用户名通过一次往返批量查询
+     * @param content 原始内容
+     * @param spans 输出每个@在内容中的起止位置
+     * @return 存在的用户名到用户id的映射
      */
-    private String handleContent(String content) {
-        String s = content.replaceAll("<", "&lt;").replaceAll(">", "&gt;");
-        Matcher matcher = mention.matcher(s);
-        StringBuffer sb = new StringBuffer();
-        while (matcher.find()) {
-            // 获取@的人
-            String p = matcher.group().substring(1);
-            // 检查是否存在该用户
-            if (userDao.isUserValid(p)) {
-                matcher.appendReplacement(sb, "<a href='/profile/"+ p +"'>@" + p + "</a>");
-            }
-        }
-        matcher.appendTail(sb);
-        return sb.toString();
+    private Map<String, String> findMentioned(String content, List<int[]> spans) {
+        Set<String> names = ContentUtils.findMentions(content, spans);
+        return names.isEmpty() ? Collections.emptyMap() : userDao.findMentionedUids(names);
     }
 }
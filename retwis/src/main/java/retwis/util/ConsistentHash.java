@@ -0,0 +1,90 @@
+package retwis.util;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * 一致性哈希环(ketama)
+ *   每个节点按名称在环上放置多个虚拟节点, 键落在顺时针方向的第一个虚拟节点上.
+ *   增减一个节点时只有约1/n的键改变位置, 与节点在列表中的顺序无关.
+ *   键有hash tag时只对hash tag取哈希, 规则与redis cluster相同, 同一个用户的键落在同一个节点.
+ */
+public class ConsistentHash {
+
+    // 每个节点的虚拟节点数, 每次md5得到4个
+    private static final int POINTS_PER_NODE = 160;
+
+    private static final ThreadLocal<MessageDigest> MD5 = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    });
+
+    // 虚拟节点的位置 -> 节点下标
+    private final TreeMap<Long, Integer> ring = new TreeMap<>();
+
+    /**
+     * @param nodes 节点名称, 如host:port, 不能重复
+     */
+    public ConsistentHash(List<String> nodes) {
+        for (int i = 0; i < nodes.size(); i++) {
+            for (int n = 0; n < POINTS_PER_NODE / 4; n++) {
+                byte[] digest = md5((nodes.get(i) + "-" + n).getBytes(StandardCharsets.UTF_8), 0, -1);
+                for (int k = 0; k < 4; k++) {
+                    ring.put(point(digest, k), i);
+                }
+            }
+        }
+    }
+
+    /**
+     * 键所在的节点
+     * @param key
+     * @return 节点在构造参数中的下标
+     */
+    public int node(byte[] key) {
+        int begin = 0;
+        int end = key.length;
+        // hash tag: 第一个{和之后第一个}之间的非空内容
+        for (int i = 0; i < key.length; i++) {
+            if (key[i] == '{') {
+                for (int j = i + 1; j < key.length; j++) {
+                    if (key[j] == '}') {
+                        if (j > i + 1) {
+                            begin = i + 1;
+                            end = j;
+                        }
+                        break;
+                    }
+                }
+                break;
+            }
+        }
+        Map.Entry<Long, Integer> entry = ring.ceilingEntry(point(md5(key, begin, end), 0));
+        return entry != null ? entry.getValue() : ring.firstEntry().getValue();
+    }
+
+    public int node(String key) {
+        return node(key.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static byte[] md5(byte[] bytes, int begin, int end) {
+        MessageDigest md5 = MD5.get();
+        md5.update(bytes, begin, (end < 0 ? bytes.length : end) - begin);
+        return md5.digest();
+    }
+
+    // md5的第k组4个字节, 小端序, 作为环上的无符号32位位置
+    private static long point(byte[] digest, int k) {
+        return ((long) (digest[3 + k * 4] & 0xFF) << 24)
+                | ((long) (digest[2 + k * 4] & 0xFF) << 16)
+                | ((long) (digest[1 + k * 4] & 0xFF) << 8)
+                | (digest[k * 4] & 0xFF);
+    }
+}
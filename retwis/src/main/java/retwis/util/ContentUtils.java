@@ -0,0 +1,107 @@
+package retwis.util;
+
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * 处理帖子内容的工具类
+ */
+public class ContentUtils {
+
+    // 复用的StringBuilder超过该容量时不再保留, 避免长期占用内存
+    private static final int MAX_BUILDER_CAPACITY = 4096;
+
+    // 每个线程复用一个StringBuilder生成帖子的html
+    private static final ThreadLocal<StringBuilder> BUILDER = ThreadLocal.withInitial(() -> new StringBuilder(256));
+
+    /**
+     * 找出内容中@的用户名
+     *   即正则 @[\w]+ 的所有匹配, 逐个字符扫描, 不创建Matcher
+     * @param content 原始内容
+     * @param spans 输出每个@在内容中的起止位置
+     * @return 去重后的用户名
+     */
+    public static Set<String> findMentions(String content, List<int[]> spans) {
+        Set<String> names = null;
+        int length = content.length();
+        int i = content.indexOf('@');
+        while (i >= 0 && i < length) {
+            int end = i + 1;
+            while (end < length && isWordChar(content.charAt(end))) {
+                end++;
+            }
+            if (end > i + 1) {
+                if (names == null) {
+                    names = new LinkedHashSet<>();
+                }
+                spans.add(new int[]{i, end});
+                names.add(content.substring(i + 1, end));
+                i = content.indexOf('@', end);
+            } else {
+                i = content.indexOf('@', i + 1);
+            }
+        }
+        return names == null ? Collections.emptySet() : names;
+    }
+
+    /**
+     * 生成帖子的html
+     *   一次遍历完成转义和替换: 存在的用户替换为链接, 其余的<和>转义
+     * @param content 原始内容
+     * @param spans 每个@在内容中的起止位置
+     * @param existing 存在的用户名
+     * @return
+     */
+    public static String render(String content, List<int[]> spans, Set<String> existing) {
+        StringBuilder sb = BUILDER.get();
+        sb.setLength(0);
+        int pos = 0;
+        for (int[] span : spans) {
+            escape(content, pos, span[0], sb);
+            String p = content.substring(span[0] + 1, span[1]);
+            if (existing.contains(p)) {
+                sb.append("<a href='/profile/").append(p).append("'>@").append(p).append("</a>");
+            } else {
+                // 用户名只包含\w, 不需要转义
+                sb.append(content, span[0], span[1]);
+            }
+            pos = span[1];
+        }
+        escape(content, pos, content.length(), sb);
+        String html = sb.toString();
+        if (sb.capacity() > MAX_BUILDER_CAPACITY) {
+            BUILDER.remove();
+        }
+        return html;
+    }
+
+    /**
+     * 是否为正则中\w匹配的字符
+     * @param c
+     * @return
+     */
+    private static boolean isWordChar(char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '_';
+    }
+
+    /**
+     * 转义<和>, 不需要转义的部分整段追加
+     * @param s
+     * @param start
+     * @param end
+     * @param sb
+     */
+    private static void escape(String s, int start, int end, StringBuilder sb) {
+        int from = start;
+        for (int i = start; i < end; i++) {
+            char c = s.charAt(i);
+            if (c == '<' || c == '>') {
+                sb.append(s, from, i).append(c == '<' ? "&lt;" : "&gt;");
+                from = i + 1;
+            }
+        }
+        sb.append(s, from, end);
+    }
+}
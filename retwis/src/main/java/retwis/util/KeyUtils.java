@@ -1,27 +1,38 @@
 package retwis.util;
 
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
 /**
  * 处理redis键名的工具类
+ *   同一个用户的键都以{uid}作为hash tag, 在redis cluster中落在同一个slot, 在分片模式下落在同一个分片,
+ *   可以在一个脚本或pipeline中一起访问.
+ *   旧版本的键没有hash tag, 去掉花括号就是旧的键名, 由HashTagMigrator迁移.
  */
 public class KeyUtils {
 
     private static final String UID = "uid:";
 
+    // 旧版本的用户键: user:1, uid:1:posts, followers:1:uid ...
+    private static final Pattern LEGACY_USER_KEY =
+            Pattern.compile("^(user:)(\\d+)$|^(uid:|followers:|following:)(\\d+)(:[a-z]+)$");
+
     /* global */
 
     public static String globalUid() {
         return "global:uid";
     }
 
-    public static String globalPid() {
-        return "global:pid";
+    // global:worker:1 --- 节点号1的租约, 值为持有该节点号的应用实例
+    public static String worker(int workerId) {
+        return "global:worker:" + workerId;
     }
 
     /* user */
 
-    // user:1 --- 用户id为1d的用户信息
+    // user:{1} --- 用户id为1的用户信息
     public static String user(String uid) {
-        return "user:" + uid;
+        return "user:" + tag(uid);
     }
 
     // user:tom:uid --- 用户tom的用户id
@@ -29,9 +40,9 @@ public class KeyUtils {
         return "user:" + name + ":uid";
     }
 
-    // uid:1:auth --- 用户id为1的密钥
+    // uid:{1}:auth --- 用户id为1的密钥
    public static String auth(String uid) {
-        return UID + uid + ":auth";
+        return UID + tag(uid) + ":auth";
     }
 
     // auth:2b6116cd-4d35-4304-80f6-e9a5dd7e54a6 --- 密钥为2b6116c...的用户id
@@ -51,24 +62,136 @@ public class KeyUtils {
         return "pid:" + pid;
     }
 
-    // uid:1:posts --- 用户id为1的所有帖子
+    // uid:{1}:posts --- 用户id为1的所有帖子, 分数为帖子id
     public static String posts(String uid) {
-        return UID + uid + ":posts";
+        return UID + tag(uid) + ":posts";
+    }
+
+    // uid:{1}:posts:version --- 用户id为1的帖子列表的版本, 每写入一个帖子加1
+    public static String postsVersion(String uid) {
+        return UID + tag(uid) + ":posts:version";
+    }
+
+    // uid:{*}:posts --- 匹配所有用户的帖子
+    public static String postsPattern() {
+        return UID + "{*}:posts";
     }
 
-    // posts --- 保存所有帖子id和帖子发布时间的集合
+    // uid:{1}:timeline --- 用户id为1的主页时间线, 包含自己和关注的人的帖子, 分数为帖子id
+    public static String timeline(String uid) {
+        return UID + tag(uid) + ":timeline";
+    }
+
+    // uid:{*}:timeline --- 匹配所有用户的时间线
+    public static String timelinePattern() {
+        return UID + "{*}:timeline";
+    }
+
+    // uid:{1}:mentions --- 提到用户id为1的帖子, 分数为帖子id
+    public static String mentions(String uid) {
+        return UID + tag(uid) + ":mentions";
+    }
+
+    // posts --- 保存所有帖子id的集合, 分数为帖子id
     public static String posts() {
         return "posts";
     }
 
-    // followers:1:uid --- 用户id为1的粉丝, 谁关注我
+    // {posts}:version --- 全局帖子列表的版本, 每写入一批帖子加1, hash tag使它与posts在同一个slot和分片
+    public static String postsVersion() {
+        return tag(posts()) + ":version";
+    }
+
+    // celebrities --- 粉丝数超过阈值的用户id, 他们的帖子不推送, 读时间线时再合并
+    public static String celebrities() {
+        return "celebrities";
+    }
+
+    // followers:{1}:uid --- 用户id为1的粉丝, 谁关注我
     public static String followers(String uid) {
-        return "followers:" + uid + ":uid";
+        return "followers:" + tag(uid) + ":uid";
     }
 
-    // following:1:uid --- 用户id为1的关注, 我关注谁
+    // following:{1}:uid --- 用户id为1的关注, 我关注谁
     public static String following(String uid) {
-        return "following:" + uid + ":uid";
+        return "following:" + tag(uid) + ":uid";
+    }
+
+    // follow*:{*}:uid --- 匹配所有粉丝和关注的键
+    public static String followPattern() {
+        return "follow*:{*}:uid";
+    }
+
+    // archive:owner --- 归档所在的节点, 只有这个节点能读到已归档的帖子
+    public static String archiveOwner() {
+        return "archive:owner";
+    }
+
+    /* channel */
+
+    // channel:user --- 用户信息变化的通知频道, 消息内容为用户名
+    public static String userChannel() {
+        return "channel:user";
+    }
+
+    // channel:registration --- 新用户注册的通知频道, 消息内容为用户名
+    public static String registrationChannel() {
+        return "channel:registration";
+    }
+
+    /* migration */
+
+    // migration:follow-zset --- 关注关系已全部从list迁移到sorted set
+    public static String followMigrated() {
+        return "migration:follow-zset";
+    }
+
+    // migration:posts-zset --- 帖子列表和时间线已全部从list迁移到sorted set
+    public static String postsMigrated() {
+        return "migration:posts-zset";
+    }
+
+    // posts:migrating --- 分块转换posts时保存已转换部分的临时sorted set, 与原键的hash tag相同
+    public static String migrating(String key) {
+        return key + ":migrating";
+    }
+
+    // migration:hash-tags --- 用户的键已全部改为带hash tag的键名
+    public static String hashTagsMigrated() {
+        return "migration:hash-tags";
+    }
+
+    // user:*, uid:*, followers:*, following:* --- 匹配旧版本的用户键, 也包括其他键, 需要用legacyUserKey筛选
+    public static String[] legacyUserPatterns() {
+        return new String[]{"user:*", "uid:*", "followers:*", "following:*"};
+    }
+
+    /**
+     * 旧版本的用户键对应的新键名
+     * @param key
+     * @return 不是旧版本的用户键时返回null
+     */
+    public static String taggedUserKey(String key) {
+        Matcher m = LEGACY_USER_KEY.matcher(key);
+        if (!m.matches()) {
+            return null;
+        }
+        return m.group(1) != null
+                ? m.group(1) + tag(m.group(2))
+                : m.group(3) + tag(m.group(4)) + m.group(5);
+    }
+
+    /**
+     * 新键名对应的旧版本键名, 即去掉hash tag的花括号
+     * @param key
+     * @return
+     */
+    public static String legacyUserKey(String key) {
+        return key.replace("{", "").replace("}", "");
+    }
+
+    private static String tag(String uid) {
+        return "{" + uid + "}";
     }
 
 }
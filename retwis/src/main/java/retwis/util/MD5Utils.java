@@ -4,65 +4,61 @@ import lombok.extern.slf4j.Slf4j;
 
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
-import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
 
 @Slf4j
 public class MD5Utils {
 
-    /**
-     * 把字节数组转换为16进制字符串
-     * @param text
-     * @return
-     */
-    private static String hex(byte[] text) {
-        StringBuilder sb = new StringBuilder();
-        for (int i = 0; i < text.length; i++) {
-            sb.append(Integer.toHexString((text[i] & 0xFF) | 0x100).substring(1,3));
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    // 盐的长度
+    private static final int SALT_LENGTH = 16;
+
+    // MessageDigest不是线程安全的, 每个线程复用一个实例, 避免每次调用getInstance
+    private static final ThreadLocal<MessageDigest> MD5 = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException("md5加密错误!", e);
         }
-        return sb.toString();
-    }
+    });
 
     /**
-     * 把字符串进行MD5加密并转化为16进制字符串
+     * 计算 原字符串+盐 的MD5
+     *   盐只包含数字, 逐个字节写入, 和拼接后再编码的结果相同
      * @param text
+     * @param salt
      * @return
      */
-    private static String md5Hex(String text) {
-        try {
-            MessageDigest md5 = MessageDigest.getInstance("MD5");
-            byte[] digest = md5.digest(text.getBytes());
-            return hex(digest);
-        } catch (NoSuchAlgorithmException e) {
-            throw new RuntimeException("md5加密错误!",e);
+    private static byte[] md5(String text, char[] salt) {
+        MessageDigest md5 = MD5.get();
+        md5.update(text.getBytes());
+        for (char c : salt) {
+            md5.update((byte) c);
         }
+        return md5.digest();
     }
 
     /**
      * 生成含有随机盐的MD5字符串
+     *   格式为48个字符, 每3个字符依次为: MD5的高4位, 盐, MD5的低4位
      * @param text
      * @return
      */
     public static String saltAndMD5(String text) {
-        // 生成随机的16位数
-        Random random = new Random();
-        StringBuilder sb = new StringBuilder(16);
-        final int num = 99999999;
-        sb.append(random.nextInt(num)).append(random.nextInt(num));
-        if (sb.length() < 16) {
-            for (int i = 0; i < 16 - sb.length(); i++) {
-                sb.append(0);
-            }
+        // 生成随机的16位数字作为盐
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        char[] salt = new char[SALT_LENGTH];
+        for (int i = 0; i < SALT_LENGTH; i++) {
+            salt[i] = (char) ('0' + random.nextInt(10));
         }
-        // 生成盐
-        String salt = sb.toString();
         // md5加密
-        String md5Str = md5Hex(text + salt);
-        char[] cs = new char[48];
-        for (int i = 0; i < 48; i += 3) {
-            cs[i] = md5Str.charAt(i / 3 * 2);
-            char c = salt.charAt(i / 3);
-            cs[i + 1] = c;
-            cs[i + 2] = md5Str.charAt(i / 3 * 2 + 1);
+        byte[] digest = md5(text, salt);
+        char[] cs = new char[SALT_LENGTH * 3];
+        for (int i = 0; i < SALT_LENGTH; i++) {
+            cs[i * 3] = HEX[(digest[i] >> 4) & 0xF];
+            cs[i * 3 + 1] = salt[i];
+            cs[i * 3 + 2] = HEX[digest[i] & 0xF];
         }
         return String.valueOf(cs);
     }
@@ -74,13 +70,20 @@ public class MD5Utils {
      * @return
      */
     public static boolean saltverifyMD5(String text, String md5Str) {
-        char[] cs1 = new char[32], cs2 = new char[16];
-        for (int i = 0; i < 48; i += 3) {
-            cs1[i / 3 * 2] = md5Str.charAt(i);
-            cs1[i / 3 * 2 + 1] = md5Str.charAt(i + 2);
-            cs2[i / 3] = md5Str.charAt(i + 1);
+        if (md5Str == null || md5Str.length() != SALT_LENGTH * 3) {
+            return false;
+        }
+        char[] salt = new char[SALT_LENGTH];
+        for (int i = 0; i < SALT_LENGTH; i++) {
+            salt[i] = md5Str.charAt(i * 3 + 1);
+        }
+        byte[] digest = md5(text, salt);
+        for (int i = 0; i < SALT_LENGTH; i++) {
+            if (md5Str.charAt(i * 3) != HEX[(digest[i] >> 4) & 0xF]
+                    || md5Str.charAt(i * 3 + 2) != HEX[digest[i] & 0xF]) {
+                return false;
+            }
         }
-        String salt = String.valueOf(cs2);
-        return md5Hex(text + salt).equals(String.valueOf(cs1));
+        return true;
     }
 }
@@ -0,0 +1,53 @@
+package retwis.util;
+
+import retwis.pojo.Post;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * 帖子的二进制序列化
+ *   格式: id(8) uid(8) publishTime(8) username长度(4) username content长度(4) content
+ */
+public class PostCodec {
+
+    private static final int FIXED_SIZE = 8 * 3 + 4 * 2;
+
+    /**
+     * 序列化帖子
+     * @param post
+     * @return
+     */
+    public static byte[] encode(Post post) {
+        byte[] username = post.getUsername().getBytes(StandardCharsets.UTF_8);
+        byte[] content = post.getContent().getBytes(StandardCharsets.UTF_8);
+        ByteBuffer buffer = ByteBuffer.allocate(FIXED_SIZE + username.length + content.length);
+        buffer.putLong(post.getId());
+        buffer.putLong(post.getUid());
+        buffer.putLong(post.getPublishTime());
+        buffer.putInt(username.length).put(username);
+        buffer.putInt(content.length).put(content);
+        return buffer.array();
+    }
+
+    /**
+     * 从buffer的当前位置反序列化帖子
+     * @param buffer
+     * @return
+     */
+    public static Post decode(ByteBuffer buffer) {
+        Post post = new Post();
+        post.setId(buffer.getLong());
+        post.setUid(buffer.getLong());
+        post.setPublishTime(buffer.getLong());
+        post.setUsername(readString(buffer));
+        post.setContent(readString(buffer));
+        return post;
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getInt()];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,25 @@
+package retwis.util;
+
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.scripting.support.ResourceScriptSource;
+
+/**
+ * 加载lua脚本的工具类
+ */
+public class ScriptUtils {
+
+    /**
+     * 加载classpath下的lua脚本
+     * @param path 脚本路径, 如scripts/register_user.lua
+     * @param resultType 脚本返回值类型
+     * @return
+     */
+    public static <T> RedisScript<T> load(String path, Class<T> resultType) {
+        DefaultRedisScript<T> script = new DefaultRedisScript<>();
+        script.setScriptSource(new ResourceScriptSource(new ClassPathResource(path)));
+        script.setResultType(resultType);
+        return script;
+    }
+}
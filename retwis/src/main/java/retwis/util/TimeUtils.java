@@ -8,24 +8,32 @@ public class TimeUtils {
     public static final long MINUTE = 60000L;
     public static final long SECOND = 1000L;
 
+    private static final long[] UNITS = {YEAR, MONTH, DAY, HOUR, MINUTE, SECOND};
+    private static final String[] UNIT_NAMES = {"year", "month", "day", "hour", "minute", "second"};
+
+    // 每个单位1到60的结果预先生成, 渲染页面时不需要拼接字符串
+    private static final String[][] TEXTS = new String[UNITS.length][61];
+
+    static {
+        for (int u = 0; u < UNITS.length; u++) {
+            for (int n = 1; n < TEXTS[u].length; n++) {
+                TEXTS[u][n] = text(n, u);
+            }
+        }
+    }
+
     public static String convertTime(long time) {
         long gap = System.currentTimeMillis() - time;
-        StringBuilder sb = new StringBuilder("posted ");
-        if (gap > YEAR) {
-            sb.append(gap / YEAR).append(" year");
-        } else if (gap > MONTH) {
-            sb.append(gap / MONTH).append(" month");
-        } else if (gap > DAY) {
-            sb.append(gap / DAY).append(" day");
-        } else if (gap > HOUR) {
-            sb.append(gap / HOUR).append(" hour");
-        } else if (gap > MINUTE) {
-            sb.append(gap / MINUTE).append(" minute");
-        } else if (gap > SECOND) {
-            sb.append(gap / SECOND).append(" second");
-        } else {
-            sb.append("1 second");
+        for (int u = 0; u < UNITS.length; u++) {
+            if (gap > UNITS[u]) {
+                long n = gap / UNITS[u];
+                return n < TEXTS[u].length ? TEXTS[u][(int) n] : text(n, u);
+            }
         }
-        return sb.append(" ago via web").toString();
+        return TEXTS[UNITS.length - 1][1];
+    }
+
+    private static String text(long n, int unit) {
+        return "posted " + n + " " + UNIT_NAMES[unit] + " ago via web";
     }
 }
@@ -0,0 +1,77 @@
+package retwis.web;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Component;
+import org.springframework.web.servlet.HandlerInterceptor;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 限制同时处理的请求数
+ *   使用虚拟线程时线程数不再限制并发, 同时访问redis的请求过多只会让redis和连接上排队变长.
+ *   上限按redis能承受的并发设置, 超出的请求按到达顺序等待, 等待超时返回503.
+ */
+@Slf4j
+@Component
+public class ConcurrencyLimitInterceptor implements HandlerInterceptor {
+
+    // 请求是否持有许可
+    private static final String PERMIT_ATTRIBUTE = ConcurrencyLimitInterceptor.class.getName() + ".permit";
+
+    // 为null时不限制
+    private final Semaphore permits;
+    // 等待许可的最长时间
+    private final long waitMillis;
+
+    private final Counter rejected;
+
+    @Autowired
+    public ConcurrencyLimitInterceptor(MeterRegistry meterRegistry,
+                                       @Value("${retwis.concurrency.max-requests:0}") int maxRequests,
+                                       @Value("${retwis.concurrency.wait-millis:1000}") long waitMillis) {
+        this.permits = maxRequests > 0 ? new Semaphore(maxRequests, true) : null;
+        this.waitMillis = waitMillis;
+        this.rejected = meterRegistry.counter("retwis.concurrency.rejected");
+        if (permits != null) {
+            Gauge.builder("retwis.concurrency.available", permits, Semaphore::availablePermits)
+                    .register(meterRegistry);
+            Gauge.builder("retwis.concurrency.waiting", permits, Semaphore::getQueueLength)
+                    .register(meterRegistry);
+        }
+    }
+
+    @Override
+    public boolean preHandle(HttpServletRequest request, HttpServletResponse response, Object handler)
+            throws IOException, InterruptedException {
+        if (permits == null) {
+            return true;
+        }
+        if (!permits.tryAcquire(waitMillis, TimeUnit.MILLISECONDS)) {
+            rejected.increment();
+            log.warn("等待{}ms后仍超过并发上限, 拒绝请求{} {}", waitMillis, request.getMethod(), request.getRequestURI());
+            response.sendError(HttpStatus.SERVICE_UNAVAILABLE.value());
+            return false;
+        }
+        request.setAttribute(PERMIT_ATTRIBUTE, Boolean.TRUE);
+        return true;
+    }
+
+    @Override
+    public void afterCompletion(HttpServletRequest request, HttpServletResponse response, Object handler,
+                                Exception ex) {
+        if (request.getAttribute(PERMIT_ATTRIBUTE) != null) {
+            request.removeAttribute(PERMIT_ATTRIBUTE);
+            permits.release();
+        }
+    }
+}
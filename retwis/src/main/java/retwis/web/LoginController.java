@@ -102,12 +102,11 @@ public class LoginController {
             redirectAttributes.addFlashAttribute(SING_UP_ERROR_MSG, "密码长度必须在6-16之间,且只能由数字,字母,_和.组成");
             return "redirect:/signIn.html";
         }
-        if (userService.checkValid(username)) {
+        // 注册
+        if (!userService.regUser(username, password)) {
             redirectAttributes.addFlashAttribute(SING_UP_ERROR_MSG, "用户名重复");
             return "redirect:/signIn.html";
         }
-        // 注册
-        userService.regUser(username, password);
         redirectAttributes.addFlashAttribute(SING_UP_SUCCESS_MSG, "注册成功!");
         // 跳转到登录页
         return "redirect:/signIn.html";
@@ -0,0 +1,80 @@
+package retwis.web;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Component;
+import org.springframework.web.reactive.function.server.ServerRequest;
+import org.springframework.web.reactive.function.server.ServerResponse;
+import reactor.core.publisher.Mono;
+import retwis.dao.ReactiveUserDao;
+import retwis.pojo.Page;
+
+import java.net.URI;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * 只读页面的响应式版本, 与UserController使用相同的模板
+ *   页面需要的各项数据同时查询; 响应式服务没有登录会话, 所有访问者都按未登录处理.
+ */
+@Component
+@ConditionalOnProperty(name = "retwis.reactive.enabled", havingValue = "true")
+public class ReactivePages {
+
+    private final ReactiveUserDao userDao;
+
+    @Autowired
+    public ReactivePages(ReactiveUserDao userDao) {
+        this.userDao = userDao;
+    }
+
+    /**
+     * 时间线广场
+     * @param request
+     * @return
+     */
+    public Mono<ServerResponse> timeline(ServerRequest request) {
+        String before = request.queryParam("before").orElse(null);
+        String after = request.queryParam("after").orElse(null);
+        return Mono.zip(userDao.findNewPosts(before, after, UserController.TIMELINE_PAGE_SIZE),
+                userDao.findUsers(UserController.RECENT_USERS_SIZE).collectList())
+                .flatMap(t -> {
+                    Map<String, Object> model = page(t.getT1());
+                    model.put("users", t.getT2());
+                    return html("timeline", model);
+                });
+    }
+
+    /**
+     * 个人信息页
+     * @param request
+     * @return 用户不存在时重定向到时间线广场
+     */
+    public Mono<ServerResponse> profile(ServerRequest request) {
+        String name = request.pathVariable("name");
+        String before = request.queryParam("before").orElse(null);
+        String after = request.queryParam("after").orElse(null);
+        return Mono.zip(userDao.findUser(name),
+                userDao.findPosts(name, before, after, UserController.PROFILE_PAGE_SIZE))
+                .flatMap(t -> {
+                    Map<String, Object> model = page(t.getT2());
+                    model.put("userP", t.getT1());
+                    model.put("followed", false);
+                    return html("profile", model);
+                })
+                .switchIfEmpty(Mono.defer(() -> ServerResponse.seeOther(URI.create("/timeline")).build()));
+    }
+
+    private static Map<String, Object> page(Page page) {
+        Map<String, Object> model = new HashMap<>();
+        model.put("posts", page.getPosts());
+        model.put("newer", page.getNewer());
+        model.put("older", page.getOlder());
+        return model;
+    }
+
+    private static Mono<ServerResponse> html(String view, Map<String, Object> model) {
+        return ServerResponse.ok().contentType(MediaType.TEXT_HTML).render(view, model);
+    }
+}
@@ -0,0 +1,128 @@
+package retwis.web;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.ApplicationContext;
+import org.springframework.context.event.EventListener;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.http.server.reactive.HttpHandler;
+import org.springframework.http.server.reactive.ReactorHttpHandlerAdapter;
+import org.springframework.stereotype.Component;
+import org.springframework.web.reactive.function.server.HandlerStrategies;
+import org.springframework.web.reactive.function.server.RouterFunction;
+import org.springframework.web.reactive.function.server.RouterFunctions;
+import org.springframework.web.reactive.function.server.ServerResponse;
+import org.thymeleaf.spring5.SpringWebFluxTemplateEngine;
+import org.thymeleaf.spring5.view.reactive.ThymeleafReactiveViewResolver;
+import org.thymeleaf.templateresolver.ITemplateResolver;
+import reactor.netty.DisposableServer;
+import reactor.netty.http.server.HttpServer;
+import retwis.util.KeyUtils;
+
+import javax.annotation.PreDestroy;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.springframework.web.reactive.function.server.RequestPredicates.GET;
+import static org.springframework.web.reactive.function.server.RouterFunctions.route;
+
+/**
+ * 响应式(WebFlux + netty)服务, 在单独的端口上提供只读页面
+ *   与servlet服务同时运行, 共用同一套dao, 缓存和模板, 便于在相同的数据上比较两种方式的吞吐量.
+ *   只包括/timeline和/profile/{name}两个页面以及静态资源, 登录, 发帖等仍由servlet服务处理.
+ *   响应式的dao不会转换旧的键, 已有用户时所有迁移都完成才能启动, 否则启动失败.
+ */
+@Slf4j
+@Component
+@ConditionalOnProperty(name = "retwis.reactive.enabled", havingValue = "true")
+public class ReactiveServer {
+
+    // 响应式的dao依赖的迁移
+    private static final String[] MIGRATIONS = {
+            KeyUtils.hashTagsMigrated(), KeyUtils.followMigrated(), KeyUtils.postsMigrated()};
+
+    private final ReactivePages pages;
+    private final StringRedisTemplate template;
+    private final ApplicationContext applicationContext;
+    private final ObjectProvider<ITemplateResolver> templateResolvers;
+
+    // 监听的端口
+    private final int port;
+
+    private DisposableServer server;
+
+    @Autowired
+    public ReactiveServer(ReactivePages pages,
+                          StringRedisTemplate template,
+                          ApplicationContext applicationContext,
+                          ObjectProvider<ITemplateResolver> templateResolvers,
+                          @Value("${retwis.reactive.port:8081}") int port) {
+        this.pages = pages;
+        this.template = template;
+        this.applicationContext = applicationContext;
+        this.templateResolvers = templateResolvers;
+        this.port = port;
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void start() {
+        checkMigrated();
+        RouterFunction<ServerResponse> routes = route(GET("/"),
+                request -> ServerResponse.seeOther(URI.create("/timeline")).build())
+                .andRoute(GET("/timeline"), pages::timeline)
+                .andRoute(GET("/profile/{name}"), pages::profile)
+                .and(RouterFunctions.resources("/**", new ClassPathResource("static/")));
+        HttpHandler handler = RouterFunctions.toHttpHandler(routes,
+                HandlerStrategies.builder().viewResolver(viewResolver()).build());
+        server = HttpServer.create()
+                .port(port)
+                .handle(new ReactorHttpHandlerAdapter(handler))
+                .bindNow();
+        log.info("响应式服务已启动, 端口{}", server.port());
+    }
+
+    @PreDestroy
+    public void stop() {
+        if (server != null) {
+            server.disposeNow();
+        }
+    }
+
+    /**
+     * 检查迁移的完成标记, 还没有注册过用户的新部署没有需要迁移的键
+     */
+    private void checkMigrated() {
+        if (!Boolean.TRUE.equals(template.hasKey(KeyUtils.globalUid()))) {
+            return;
+        }
+        List<String> missing = new ArrayList<>();
+        for (String marker : MIGRATIONS) {
+            if (!Boolean.TRUE.equals(template.hasKey(marker))) {
+                missing.add(marker);
+            }
+        }
+        if (!missing.isEmpty()) {
+            throw new IllegalStateException("迁移未完成" + missing
+                    + ", 请先设置retwis.reactive.enabled=false启动并等待迁移完成, 再开启响应式服务");
+        }
+    }
+
+    /**
+     * 使用servlet服务的模板解析器, 模板相同
+     * @return
+     */
+    private ThymeleafReactiveViewResolver viewResolver() {
+        SpringWebFluxTemplateEngine engine = new SpringWebFluxTemplateEngine();
+        templateResolvers.orderedStream().forEach(engine::addTemplateResolver);
+        ThymeleafReactiveViewResolver viewResolver = new ThymeleafReactiveViewResolver();
+        viewResolver.setTemplateEngine(engine);
+        viewResolver.setApplicationContext(applicationContext);
+        return viewResolver;
+    }
+}
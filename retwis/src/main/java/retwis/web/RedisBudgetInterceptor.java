@@ -0,0 +1,86 @@
+package retwis.web;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.web.servlet.HandlerInterceptor;
+import org.springframework.web.servlet.ModelAndView;
+import retwis.metrics.RedisRequestStats;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * 统计每个请求访问redis的往返次数和耗时
+ *   处理完成后(渲染页面之前)写入响应头:
+ *     X-Redis-Round-Trips: 往返次数
+ *     Server-Timing: redis;dur=累计耗时(毫秒);desc="命令数"
+ *   往返次数超过预算时记录警告, 严格模式下直接抛出异常, 用于在测试中发现循环访问redis(N+1)的改动.
+ */
+@Slf4j
+@Component
+public class RedisBudgetInterceptor implements HandlerInterceptor {
+
+    // 每个请求的往返次数预算, 为0时不检查
+    private final int budget;
+    // 超出预算时是否抛出异常
+    private final boolean strict;
+    // 是否写入响应头
+    private final boolean header;
+
+    @Autowired
+    public RedisBudgetInterceptor(@Value("${retwis.redis.budget.round-trips:10}") int budget,
+                                  @Value("${retwis.redis.budget.strict:false}") boolean strict,
+                                  @Value("${retwis.redis.budget.header:true}") boolean header) {
+        this.budget = budget;
+        this.strict = strict;
+        this.header = header;
+    }
+
+    @Override
+    public boolean preHandle(HttpServletRequest request, HttpServletResponse response, Object handler) {
+        RedisRequestStats.begin();
+        return true;
+    }
+
+    @Override
+    public void postHandle(HttpServletRequest request, HttpServletResponse response, Object handler,
+                           ModelAndView modelAndView) {
+        RedisRequestStats stats = RedisRequestStats.current();
+        if (stats == null) {
+            return;
+        }
+        if (header) {
+            response.setHeader("X-Redis-Round-Trips", String.valueOf(stats.getRoundTrips()));
+            response.addHeader("Server-Timing", String.format("redis;dur=%.3f;desc=\"%d commands\"",
+                    stats.getNanos() / 1e6, stats.getCommands()));
+        }
+        if (strict && overBudget(stats)) {
+            throw new IllegalStateException(String.format("%s %s访问redis %d次往返, 超过预算%d",
+                    request.getMethod(), request.getRequestURI(), stats.getRoundTrips(), budget));
+        }
+    }
+
+    @Override
+    public void afterCompletion(HttpServletRequest request, HttpServletResponse response, Object handler,
+                                Exception ex) {
+        RedisRequestStats stats = RedisRequestStats.end();
+        if (stats == null) {
+            return;
+        }
+        if (overBudget(stats)) {
+            log.warn("{} {}访问redis {}次往返, {}条命令, 耗时{}ms, 超过预算{}",
+                    request.getMethod(), request.getRequestURI(), stats.getRoundTrips(), stats.getCommands(),
+                    stats.getNanos() / 1000000, budget);
+        } else if (log.isDebugEnabled()) {
+            log.debug("{} {}访问redis {}次往返, {}条命令, 耗时{}us",
+                    request.getMethod(), request.getRequestURI(), stats.getRoundTrips(), stats.getCommands(),
+                    stats.getNanos() / 1000);
+        }
+    }
+
+    private boolean overBudget(RedisRequestStats stats) {
+        return budget > 0 && stats.getRoundTrips() > budget;
+    }
+}
@@ -0,0 +1,128 @@
+package retwis.web;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.thymeleaf.ITemplateEngine;
+import org.thymeleaf.context.WebContext;
+import retwis.cache.LruCache;
+import retwis.pojo.Page;
+import retwis.service.UserService;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 时间线广场渲染结果的缓存
+ *   页面中的帖子列表和最近注册的用户对所有访问者都相同, 缓存渲染好的html:
+ *     帖子列表的键为 翻页游标 + 帖子列表的版本, 用户列表的键为最近注册的用户名;
+ *   版本和最近注册的用户名由调用方用一次往返查询(UserService.findHeads), 发帖或注册后键随之改变,
+ *   旧的html不再被命中. 帖子id不按大小顺序写入, 不能用最新帖子id作为键, 晚写入的较小id不会改变它.
+ *   帖子的相对时间由浏览器根据data-time计算(/js/time.js), 缓存中的文字只在禁用脚本时显示.
+ *   渲染时不重写url, html中不会带上某个访问者的jsessionid.
+ */
+@Component
+public class TimelineFragments {
+
+    private final UserService userService;
+    private final ITemplateEngine templateEngine;
+
+    // 为null时不缓存
+    private final LruCache<String, String> cache;
+
+    @Autowired
+    public TimelineFragments(UserService userService,
+                             ITemplateEngine templateEngine,
+                             MeterRegistry meterRegistry,
+                             @Value("${retwis.timeline.fragment-cache.max-size:64}") int maxSize,
+                             @Value("${retwis.timeline.fragment-cache.ttl-millis:60000}") long ttlMillis) {
+        this.userService = userService;
+        this.templateEngine = templateEngine;
+        if (maxSize > 0) {
+            this.cache = new LruCache<>("fragment", maxSize, ttlMillis);
+            cache.bindTo(meterRegistry);
+        } else {
+            this.cache = null;
+        }
+    }
+
+    public boolean isEnabled() {
+        return cache != null;
+    }
+
+    /**
+     * 查询或渲染时间线广场的帖子列表和用户列表
+     *   先读版本再加载帖子, 版本在写入帖子之后才递增, 读到的版本包含的帖子一定能加载到;
+     *   期间新发的帖子最多使缓存的内容比键更新, 下一个版本会重新渲染
+     * @param heads UserService.findHeads(UserController.RECENT_USERS_SIZE)的结果
+     * @param before 查询比该游标更旧的帖子
+     * @param after 查询比该游标更新的帖子
+     * @param request
+     * @param response
+     * @return 模板变量postsHtml和usersHtml
+     */
+    public Map<String, Object> render(List<String> heads, String before, String after,
+                                      HttpServletRequest request, HttpServletResponse response) {
+        List<String> names = heads.subList(1, heads.size());
+        // 与分页查询相同, 有after时忽略before, 无法解析的游标等同于没有
+        Long afterPid = Page.parseCursor(after);
+        Long beforePid = afterPid == null ? Page.parseCursor(before) : null;
+        String postsKey = "posts:" + heads.get(0) + ":" + beforePid + ":" + afterPid;
+        String usersKey = "users:" + (names.isEmpty() ? null : names.get(0));
+
+        Map<String, Object> html = new HashMap<>();
+        html.put("postsHtml", cache.get(postsKey, k -> {
+            Page page = userService.findPosts(before, after, UserController.TIMELINE_PAGE_SIZE);
+            Map<String, Object> variables = new HashMap<>();
+            variables.put("posts", page.getPosts());
+            variables.put("newer", page.getNewer());
+            variables.put("older", page.getOlder());
+            return process("posts", variables, request, response);
+        }));
+        html.put("usersHtml", cache.get(usersKey, k -> process("users",
+                Collections.singletonMap("users", userService.findUsers(names)), request, response)));
+        return html;
+    }
+
+    /**
+     * 渲染timeline模板中的一个片段
+     * @param fragment th:fragment的名称
+     * @param variables
+     * @param request
+     * @param response
+     * @return
+     */
+    private String process(String fragment, Map<String, Object> variables,
+                           HttpServletRequest request, HttpServletResponse response) {
+        WebContext context = new WebContext(request, new NoRewriteResponse(response), request.getServletContext(),
+                request.getLocale(), variables);
+        return templateEngine.process("timeline", Collections.singleton(fragment), context);
+    }
+
+    /**
+     * 不在链接中加入jsessionid的response
+     */
+    private static class NoRewriteResponse extends HttpServletResponseWrapper {
+
+        NoRewriteResponse(HttpServletResponse response) {
+            super(response);
+        }
+
+        @Override
+        public String encodeURL(String url) {
+            return url;
+        }
+
+        @Override
+        @SuppressWarnings("deprecation")
+        public String encodeUrl(String url) {
+            return url;
+        }
+    }
+}
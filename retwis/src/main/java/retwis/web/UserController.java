@@ -2,20 +2,28 @@ package retwis.web;
 
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.CacheControl;
+import org.springframework.http.HttpHeaders;
 import org.springframework.stereotype.Controller;
 import org.springframework.ui.Model;
+import org.springframework.util.DigestUtils;
 import org.springframework.util.ObjectUtils;
 import org.springframework.util.StringUtils;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.ServletWebRequest;
 import org.springframework.web.servlet.mvc.support.RedirectAttributes;
+import retwis.pojo.Page;
 import retwis.pojo.Post;
-import retwis.pojo.Range;
 import retwis.pojo.User;
 import retwis.service.UserService;
 
+import javax.servlet.http.HttpServletResponse;
 import javax.servlet.http.HttpSession;
 import java.io.UnsupportedEncodingException;
 import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
 
 
 @Slf4j
@@ -24,54 +32,71 @@ public class UserController {
 
     private UserService userService;
 
+    // 时间线广场的渲染缓存
+    private TimelineFragments timelineFragments;
+
     private static final String ERROR_MSG = "errorMsg";
 
+    // 个人信息页每页帖子数
+    static final int PROFILE_PAGE_SIZE = 10;
+    // 时间线广场每页帖子数
+    static final int TIMELINE_PAGE_SIZE = 50;
+    // 时间线广场显示的最近注册用户数
+    static final int RECENT_USERS_SIZE = 10;
+
     @Autowired
-    public UserController(UserService userService) {
+    public UserController(UserService userService, TimelineFragments timelineFragments) {
         this.userService = userService;
+        this.timelineFragments = timelineFragments;
     }
 
 
     /**
      * 个人信息页
+     *   访问他人的页面时, 先用一次往返查询页面的版本作为ETag, 与If-None-Match相同时直接返回304
      * @param username
-     * @param page
+     * @param before 查询比该游标更旧的帖子
+     * @param after 查询比该游标更新的帖子
      * @param model
      * @return
      */
     @GetMapping("/profile/{name}")
     public String getProfile(@PathVariable("name") String username,
-                             @RequestParam(required = false, defaultValue = "1") Integer page,
+                             @RequestParam(required = false) String before,
+                             @RequestParam(required = false) String after,
                              Model model,
                              HttpSession session,
-                             RedirectAttributes redirectAttributes) {
+                             RedirectAttributes redirectAttributes,
+                             ServletWebRequest webRequest) {
         if (!userService.checkValid(username)) {
             // 用户不存在!
             return "redirect:/timeline";
         }
+        // 获取登录用户
+        User user = handleUserSession(session);
+        String viewer = user != null ? user.getUsername() : null;
+        boolean self = checkUser(username, user);
+        privateCache(webRequest);
+        // 带有重定向信息的页面不缓存
+        if (!self && !model.containsAttribute(ERROR_MSG)
+                && webRequest.checkNotModified(etag("profile", username, viewer, before, after,
+                        userService.getProfileVersion(username, viewer)))) {
+            return null;
+        }
         // 获取信息
         model.addAttribute("userP", userService.getUser(username));
-        // 帖子分页
-        page = (page != null ? Math.abs(page) : 1);
-        Range range = new Range(page);
-        model.addAttribute("morePosts", userService.hasMorePosts(username, range));
-        model.addAttribute("posts", userService.getPosts(username, range));
-        model.addAttribute("hasPrev", page != range.prev(page));
-        model.addAttribute("next", range.next(page));
-        model.addAttribute("prev", range.prev(page));
         // 是否有重定向信息
         redirectAttributes.getFlashAttributes().forEach((k,v)->{
             model.addAttribute(k,v);
         });
-        // 获取登录用户
-        User user = handleUserSession(session);
         // 访问自己,还是访问他人
-        if (!checkUser(username, user)) { // 不是当前用户
-            model.addAttribute("followed", userService.isFollowed(username,
-                    user != null ? user.getUsername() : null));
+        if (!self) { // 不是当前用户
+            addPage(model, userService.getPosts(username, before, after, PROFILE_PAGE_SIZE));
+            model.addAttribute("followed", userService.isFollowed(username, viewer));
             return "profile";
         }
-        // 是当前用户,返回个人主页
+        // 是当前用户,返回个人主页,展示自己和关注的人的帖子
+        addPage(model, userService.getTimeline(username, before, after, PROFILE_PAGE_SIZE));
         return "home";
     }
 
@@ -148,28 +173,94 @@ public class UserController {
 
     /**
      * 时间线广场
-     * @param page
+     *   帖子列表的版本和最近注册的用户名作为ETag, 与If-None-Match相同时直接返回304
+     * @param before 查询比该游标更旧的帖子
+     * @param after 查询比该游标更新的帖子
      * @param model
      * @param session
+     * @param webRequest
      * @return
      */
     @GetMapping("/timeline")
-    public String timeline(@RequestParam(required = false, defaultValue = "1") Integer page,
+    public String timeline(@RequestParam(required = false) String before,
+                           @RequestParam(required = false) String after,
                            Model model,
-                           HttpSession session) {
-        // 分页
-        page = page <= 0 ? 1 : page;
-        Range range = new Range(page, 50);
-        model.addAttribute("next", range.next(page));
-        model.addAttribute("prev", range.prev(page));
-        model.addAttribute("hasMore", range.getEnd() < range.getTotal() - 1);
-        model.addAttribute("hasPrev", page != 1);
-        model.addAttribute("posts", userService.findPosts(range));
+                           HttpSession session,
+                           ServletWebRequest webRequest) {
+        List<String> heads = userService.findHeads(RECENT_USERS_SIZE);
+        // 登录状态影响页面上的链接
+        User user = handleUserSession(session);
+        privateCache(webRequest);
+        if (webRequest.checkNotModified(etag("timeline", user != null ? user.getUsername() : null,
+                before, after, heads))) {
+            return null;
+        }
+        if (timelineFragments.isEnabled()) {
+            // 帖子列表和用户列表使用缓存的html
+            model.addAllAttributes(timelineFragments.render(heads, before, after,
+                    webRequest.getRequest(), webRequest.getResponse()));
+            return "timeline";
+        }
+        addPage(model, userService.findPosts(before, after, TIMELINE_PAGE_SIZE));
         // 获取注册的用户
-        model.addAttribute("users", userService.findUsers(10));
+        model.addAttribute("users", userService.findUsers(heads.subList(1, heads.size())));
         return "timeline";
     }
 
+    /**
+     * 提到当前用户的帖子
+     * @param before 查询比该游标更旧的帖子
+     * @param after 查询比该游标更新的帖子
+     * @param model
+     * @param session
+     * @return
+     */
+    @GetMapping("/mentions")
+    public String mentions(@RequestParam(required = false) String before,
+                           @RequestParam(required = false) String after,
+                           Model model,
+                           HttpSession session) {
+        User user = handleUserSession(session);
+        if (user == null) {
+            return "redirect:/";
+        }
+        model.addAttribute("userP", userService.getUser(user.getUsername()));
+        addPage(model, userService.getMentions(user.getUsername(), before, after, PROFILE_PAGE_SIZE));
+        return "mentions";
+    }
+
+    /**
+     * 添加分页信息
+     * @param model
+     * @param page
+     */
+    private void addPage(Model model, Page page) {
+        model.addAttribute("posts", page.getPosts());
+        model.addAttribute("newer", page.getNewer());
+        model.addAttribute("older", page.getOlder());
+    }
+
+    /**
+     * 页面内容随登录用户不同, ETag中也包括登录用户:
+     *   只允许浏览器缓存, 每次使用前都要用ETag验证, 共享的代理按cookie区分
+     * @param webRequest
+     */
+    private static void privateCache(ServletWebRequest webRequest) {
+        HttpServletResponse response = webRequest.getResponse();
+        response.setHeader(HttpHeaders.CACHE_CONTROL, CacheControl.noCache().cachePrivate().getHeaderValue());
+        response.addHeader(HttpHeaders.VARY, HttpHeaders.COOKIE);
+    }
+
+    /**
+     * 根据页面的版本计算弱ETag, 页面中的jsessionid等细节可能不同
+     * @param parts
+     * @return
+     */
+    private static String etag(Object... parts) {
+        String version = Arrays.deepToString(parts);
+        return "W/\"" + DigestUtils.md5DigestAsHex(version.getBytes(StandardCharsets.UTF_8)) + "\"";
+    }
+
     /**
      * 检查是否为登录用户
      * @param name
@@ -0,0 +1,30 @@
+-- 把list转换为sorted set
+-- KEYS: 需要转换的键, ARGV[1]: 当前时间戳(毫秒), ARGV[2]: 分数的计算方式
+--   time:   关注关系, list头部是最新的关注, 分数为 当前时间 - 下标, 仍然是分数越大越新
+--   member: 帖子id列表, 分数为帖子id本身
+-- ARGV[3]: 一次转换的最大长度, 更长的list不在这里转换, 由list_to_zset_chunk.lua分块转换;
+--   上次分块转换中途停止(存在key:migrating)的list也交给分块转换, 否则已转换的部分会丢失.
+--   key:migrating不在KEYS中, 迁移只在单机redis上进行
+-- 重复的元素只保留list中靠前的一次
+-- 返回{转换的键数量, 过长而跳过的键...}
+local now = tonumber(ARGV[1])
+local byMember = ARGV[2] == 'member'
+local maxLength = tonumber(ARGV[3])
+local converted = 0
+local skipped = {}
+for _, key in ipairs(KEYS) do
+    if redis.call('TYPE', key).ok == 'list' then
+        if redis.call('LLEN', key) > maxLength or redis.call('EXISTS', key .. ':migrating') == 1 then
+            skipped[#skipped + 1] = key
+        else
+            local ids = redis.call('LRANGE', key, 0, -1)
+            redis.call('DEL', key)
+            for i, id in ipairs(ids) do
+                local score = byMember and tonumber(id) or now - i
+                redis.call('ZADD', key, 'NX', score, id)
+            end
+            converted = converted + 1
+        end
+    end
+end
+return {converted, unpack(skipped)}
@@ -0,0 +1,27 @@
+-- 分块把较长的list转换为sorted set, 每次只转换list尾部(最旧)的一段, 不会长时间阻塞redis
+-- KEYS[1]: 需要转换的键, KEYS[2]: 转换期间保存已转换元素的临时sorted set
+-- ARGV[1]: 开始转换时的时间戳(毫秒), 各次调用相同; ARGV[2]: 分数的计算方式, 同list_to_zset.lua
+-- ARGV[3]: 每次转换的元素数
+-- 全部转换后把临时的sorted set改名为KEYS[1]
+-- 返回1表示已完成(或不是list), 0表示还需要继续调用
+if redis.call('TYPE', KEYS[1]).ok ~= 'list' then
+    return 1
+end
+local now = tonumber(ARGV[1])
+local byMember = ARGV[2] == 'member'
+local first = math.max(redis.call('LLEN', KEYS[1]) - tonumber(ARGV[3]), 0)
+local ids = redis.call('LRANGE', KEYS[1], first, -1)
+-- 从旧到新写入, 重复的元素最终保留list中靠前一次的分数; 下标与list_to_zset.lua相同, 从头部的1开始
+for i = #ids, 1, -1 do
+    local score = byMember and tonumber(ids[i]) or now - (first + i)
+    redis.call('ZADD', KEYS[2], score, ids[i])
+end
+if first > 0 then
+    redis.call('LTRIM', KEYS[1], 0, first - 1)
+    return 0
+end
+redis.call('DEL', KEYS[1])
+if redis.call('EXISTS', KEYS[2]) == 1 then
+    redis.call('RENAME', KEYS[2], KEYS[1])
+end
+return 1
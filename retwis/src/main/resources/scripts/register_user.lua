@@ -0,0 +1,12 @@
+-- 注册用户: 用户名不存在时写入用户信息并加入用户列表
+-- KEYS[1]: user:name:uid, KEYS[2]: users, KEYS[3]: 用户信息的键
+-- ARGV[1]: 用户名, ARGV[2]: 密码, ARGV[3]: 预先分配的用户id, ARGV[4]: 注册通知频道
+-- 返回1, 用户名已存在时返回0
+if redis.call('EXISTS', KEYS[1]) == 1 then
+    return 0
+end
+redis.call('SET', KEYS[1], ARGV[3])
+redis.call('HMSET', KEYS[3], 'username', ARGV[1], 'password', ARGV[2])
+redis.call('LPUSH', KEYS[2], ARGV[1])
+redis.call('PUBLISH', ARGV[4], ARGV[1])
+return 1
@@ -0,0 +1,8 @@
+-- 释放节点号: 只删除本节点持有的租约
+-- KEYS[1]: global:worker:n
+-- ARGV[1]: 本节点的租约标识
+-- 返回删除的键数量
+if redis.call('GET', KEYS[1]) == ARGV[1] then
+    return redis.call('DEL', KEYS[1])
+end
+return 0
@@ -0,0 +1,17 @@
+-- 把旧版本的用户键改为带hash tag的键名
+-- KEYS: 旧键名和新键名交替排列
+-- 新旧键同时存在说明仍有旧版本的节点在写入旧键, 报错而不是保留或覆盖其中一个, 不做任何改名
+-- 返回实际改名的键数量
+for i = 1, #KEYS, 2 do
+    if redis.call('EXISTS', KEYS[i]) == 1 and redis.call('EXISTS', KEYS[i + 1]) == 1 then
+        return redis.error_reply('旧键' .. KEYS[i] .. '和新键' .. KEYS[i + 1] .. '同时存在, 仍有旧版本的节点在写入, 升级前需要停止所有旧版本的节点')
+    end
+end
+local renamed = 0
+for i = 1, #KEYS, 2 do
+    if redis.call('EXISTS', KEYS[i]) == 1 then
+        redis.call('RENAME', KEYS[i], KEYS[i + 1])
+        renamed = renamed + 1
+    end
+end
+return renamed
@@ -0,0 +1,9 @@
+-- 续约节点号: 租约仍属于本节点时延长过期时间
+-- KEYS[1]: global:worker:n
+-- ARGV[1]: 本节点的租约标识, ARGV[2]: 租约时长(毫秒)
+-- 返回1, 租约已过期或被其他节点持有时返回0
+if redis.call('GET', KEYS[1]) == ARGV[1] then
+    redis.call('PEXPIRE', KEYS[1], ARGV[2])
+    return 1
+end
+return 0
@@ -0,0 +1,21 @@
+// 按浏览器的当前时间显示帖子的相对时间, 与TimeUtils.convertTime相同
+// 服务端缓存的页面中的时间文字可能已经过时, 以data-time为准重新计算
+(function () {
+    var UNITS = [31536000000, 2678400000, 86400000, 3600000, 60000, 1000];
+    var UNIT_NAMES = ['year', 'month', 'day', 'hour', 'minute', 'second'];
+
+    function convertTime(time) {
+        var gap = Date.now() - time;
+        for (var u = 0; u < UNITS.length; u++) {
+            if (gap > UNITS[u]) {
+                return 'posted ' + Math.floor(gap / UNITS[u]) + ' ' + UNIT_NAMES[u] + ' ago via web';
+            }
+        }
+        return 'posted 1 second ago via web';
+    }
+
+    var items = document.querySelectorAll('[data-time]');
+    for (var i = 0; i < items.length; i++) {
+        items[i].textContent = convertTime(parseInt(items[i].getAttribute('data-time'), 10));
+    }
+})();
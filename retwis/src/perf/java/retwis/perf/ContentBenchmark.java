@@ -0,0 +1,67 @@
+package retwis.perf;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import retwis.util.ContentUtils;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 发帖时处理内容的基准测试
+ *   内容为140字以内的帖子, 包含不同数量的@和需要转义的字符
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ContentBenchmark {
+
+    @Param({"0", "3", "10"})
+    private int mentions;
+
+    private String content;
+    private List<int[]> spans;
+    private Set<String> existing;
+
+    @Setup
+    public void setup() {
+        StringBuilder sb = new StringBuilder("今天天气不错 <b>出去走走</b> ");
+        existing = new HashSet<>();
+        for (int i = 0; i < mentions; i++) {
+            sb.append("@user").append(i).append(' ');
+            // 一半的用户存在
+            if (i % 2 == 0) {
+                existing.add("user" + i);
+            }
+        }
+        sb.append("see you > there");
+        content = sb.toString();
+        spans = new ArrayList<>();
+        ContentUtils.findMentions(content, spans);
+    }
+
+    @Benchmark
+    public Set<String> findMentions() {
+        return ContentUtils.findMentions(content, new ArrayList<>());
+    }
+
+    @Benchmark
+    public String render() {
+        return ContentUtils.render(content, spans, existing);
+    }
+}
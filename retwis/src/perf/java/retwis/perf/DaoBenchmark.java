@@ -0,0 +1,206 @@
+package retwis.perf;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.springframework.boot.WebApplicationType;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+import redis.clients.jedis.Jedis;
+import redis.embedded.RedisServer;
+import retwis.RetwisApplication;
+import retwis.dao.UserDao;
+import retwis.pojo.Post;
+import retwis.service.UserService;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * UserDao和UserService的端到端基准测试
+ *   默认在进程内启动一个redis-server(embedded-redis), 也可以用 -Dretwis.perf.redis.port 指定本地已有的redis.
+ *   每次运行前清空redis, 按参数生成固定的数据集: 用户, 关注关系, 帖子.
+ *   配合RoundTripProfiler可以同时看到每次操作的redis往返次数:
+ *     mvn -Pperf test-compile exec:exec -Djmh.args="DaoBenchmark -prof retwis.perf.RoundTripProfiler"
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class DaoBenchmark {
+
+    // 数据集中的用户数
+    @Param({"1000"})
+    private int users;
+
+    // 每个用户的帖子数
+    @Param({"10"})
+    private int postsPerUser;
+
+    // 每个用户关注的人数
+    @Param({"20"})
+    private int followsPerUser;
+
+    private RedisServer redisServer;
+    private ConfigurableApplicationContext context;
+    private UserService userService;
+
+    private String[] names;
+    private long[] uids;
+    private final AtomicLong registered = new AtomicLong();
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        int port = Integer.getInteger("retwis.perf.redis.port", 0);
+        if (port == 0) {
+            port = freePort();
+            redisServer = RedisServer.newRedisServer()
+                    .port(port)
+                    .setting("save \"\"")
+                    .setting("appendonly no")
+                    .build();
+            redisServer.start();
+        }
+        // 在应用启动前清空, 启动时写入的节点号租约等数据需要保留
+        try (Jedis jedis = new Jedis("localhost", port)) {
+            jedis.flushDB();
+        }
+        context = new SpringApplicationBuilder(RetwisApplication.class, RoundTrips.class)
+                .web(WebApplicationType.NONE)
+                .run("--spring.redis.port=" + port, "--logging.level.root=WARN");
+        userService = context.getBean(UserService.class);
+        seed(context.getBean(UserDao.class));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        if (context != null) {
+            context.close();
+        }
+        if (redisServer != null) {
+            redisServer.stop();
+        }
+    }
+
+    /**
+     * 生成数据集, 随机数种子固定, 每次运行的数据相同
+     *   先建立关注关系, 再发帖并同步推送, 时间线和真实运行时一样是满的
+     * @param userDao
+     */
+    private void seed(UserDao userDao) {
+        Random random = new Random(42);
+        names = new String[users];
+        uids = new long[users];
+        for (int i = 0; i < users; i++) {
+            names[i] = "user" + i;
+            userService.regUser(names[i], "password" + i);
+            uids[i] = userService.findUid(names[i]);
+        }
+        for (int i = 0; i < users; i++) {
+            for (int j = 0; j < followsPerUser; j++) {
+                int target = random.nextInt(users);
+                if (target != i) {
+                    userDao.follow(names[target], names[i]);
+                }
+            }
+        }
+        for (int n = 0; n < postsPerUser; n++) {
+            for (int i = 0; i < users; i++) {
+                Post post = newPost(i, random);
+                String pid = userDao.savePost(post);
+                userDao.fanOut(String.valueOf(uids[i]), pid);
+            }
+        }
+    }
+
+    private Post newPost(int user, Random random) {
+        Post post = new Post();
+        post.setUid(uids[user]);
+        post.setUsername(names[user]);
+        post.setPublishTime(System.currentTimeMillis());
+        post.setContent("post " + random.nextInt() + " @" + names[random.nextInt(users)] + " <b>hi</b>");
+        return post;
+    }
+
+    /**
+     * 每个线程的随机数
+     */
+    @State(Scope.Thread)
+    public static class Visitor {
+        Random random = new Random();
+    }
+
+    @Benchmark
+    public boolean register() {
+        return userService.regUser("bench" + registered.incrementAndGet(), "password");
+    }
+
+    @Benchmark
+    public void post(Visitor visitor) {
+        userService.addPost(newPost(visitor.random.nextInt(users), visitor.random));
+    }
+
+    @Benchmark
+    public boolean follow(Visitor visitor) {
+        String user = names[visitor.random.nextInt(users)];
+        String fan = names[visitor.random.nextInt(users)];
+        return visitor.random.nextBoolean()
+                ? userService.follow(user, fan)
+                : userService.stopFollowing(user, fan);
+    }
+
+    @Benchmark
+    public Object findNewPosts() {
+        return userService.findPosts(null, null, 50);
+    }
+
+    /**
+     * 访问他人的个人信息页, 与UserController.getProfile相同的调用
+     * @param visitor
+     * @param bh
+     */
+    @Benchmark
+    public void profile(Visitor visitor, Blackhole bh) {
+        String name = names[visitor.random.nextInt(users)];
+        String viewer = names[visitor.random.nextInt(users)];
+        bh.consume(userService.checkValid(name));
+        bh.consume(userService.getUser(name));
+        bh.consume(userService.getPosts(name, null, null, 10));
+        bh.consume(userService.isFollowed(name, viewer));
+    }
+
+    /**
+     * 访问自己的主页, 与UserController.getProfile相同的调用
+     * @param visitor
+     * @param bh
+     */
+    @Benchmark
+    public void home(Visitor visitor, Blackhole bh) {
+        String name = names[visitor.random.nextInt(users)];
+        bh.consume(userService.checkValid(name));
+        bh.consume(userService.getUser(name));
+        bh.consume(userService.getTimeline(name, null, null, 10));
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+}
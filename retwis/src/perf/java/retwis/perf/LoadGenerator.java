@@ -0,0 +1,535 @@
+package retwis.perf;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.HistogramLogWriter;
+import org.HdrHistogram.Recorder;
+import org.springframework.boot.WebApplicationType;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+import redis.embedded.RedisServer;
+import retwis.RetwisApplication;
+import retwis.dao.UserDao;
+import retwis.pojo.Post;
+import retwis.service.UserService;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.IntConsumer;
+
+/**
+ * 负载生成器
+ *   1. 生成数据集: 用户, 关注关系(按Zipf分布选择关注的人, 少数用户拥有大部分粉丝), 帖子
+ *   2. 按固定的目标速率发出请求(open-loop): 请求按计划时间发出, 不等待前一个请求完成,
+ *      延迟从计划时间开始计算, 服务变慢时排队的时间也计入延迟
+ *   3. 按操作输出吞吐量和p50/p99/p999延迟, 每秒的直方图以HdrHistogram日志格式写入文件
+ *
+ *   不指定--url时在进程内启动应用, 直接调用UserService; 指定--url时请求运行中应用的http接口,
+ *   此时数据集仍在进程内通过UserService写入同一个redis.
+ *
+ *   mvn -Pperf test-compile exec:exec -Dperf.main=retwis.perf.LoadGenerator \
+ *       -Dperf.args="--url=http://localhost:8080 --users=10000 --rate=500 --duration=60"
+ *
+ *   参数(括号内为默认值):
+ *     --url             被测应用的地址, 为空时直接调用UserService
+ *     --redis-host      (localhost) --redis-port (6379)
+ *     --embedded-redis  在进程内启动redis-server (false)
+ *     --seed            是否生成数据集 (true), 为false时使用已有的数据集
+ *     --users (10000) --follows 每个用户关注的人数 (20) --posts 每个用户的帖子数 (5) --zipf 分布指数 (1.0)
+ *     --rate 每秒请求数 (200) --warmup 预热秒数, 不计入结果 (5) --duration 测量秒数 (30)
+ *     --threads 发出请求的线程数 (64) --sessions http模式下登录的用户数, 为0时不登录 (100)
+ *     --mix 各操作的比例 (timeline:30,profile:60,post:7,follow:3)
+ *     --out 直方图日志文件 (load.hlog)
+ */
+public class LoadGenerator {
+
+    private static final String PASSWORD = "password";
+
+    private final Map<String, String> options;
+    private final int users;
+    private final Zipf zipf;
+
+    private ConfigurableApplicationContext context;
+
+    public LoadGenerator(Map<String, String> options) {
+        this.options = options;
+        this.users = intOption("users", 10000);
+        this.zipf = new Zipf(users, Double.parseDouble(option("zipf", "1.0")));
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            if (!arg.startsWith("--")) {
+                throw new IllegalArgumentException("参数格式为--name=value: " + arg);
+            }
+            int eq = arg.indexOf('=');
+            options.put(eq < 0 ? arg.substring(2) : arg.substring(2, eq), eq < 0 ? "true" : arg.substring(eq + 1));
+        }
+        new LoadGenerator(options).run();
+        System.exit(0);
+    }
+
+    private void run() throws Exception {
+        RedisServer redisServer = null;
+        int redisPort = intOption("redis-port", 6379);
+        if (Boolean.parseBoolean(option("embedded-redis", "false"))) {
+            redisServer = RedisServer.newRedisServer().port(redisPort).setting("save \"\"").build();
+            redisServer.start();
+        }
+        // devtools重启时会用启动应用的参数重新调用main, 需要关闭
+        System.setProperty("spring.devtools.restart.enabled", "false");
+        try {
+            context = new SpringApplicationBuilder(RetwisApplication.class)
+                    .web(WebApplicationType.NONE)
+                    .run("--spring.redis.host=" + option("redis-host", "localhost"),
+                            "--spring.redis.port=" + redisPort,
+                            "--logging.level.root=WARN");
+            if (Boolean.parseBoolean(option("seed", "true"))) {
+                seed();
+            }
+            String url = options.get("url");
+            Target target;
+            if (url == null) {
+                target = new ServiceTarget(context.getBean(UserService.class));
+            } else {
+                context.close();
+                context = null;
+                target = new HttpTarget(url, intOption("sessions", 100));
+            }
+            drive(target);
+        } finally {
+            if (context != null) {
+                context.close();
+            }
+            if (redisServer != null) {
+                redisServer.stop();
+            }
+        }
+    }
+
+    /**
+     * 生成数据集
+     *   每个用户关注的人按Zipf分布选择, 排名越靠前的用户粉丝越多;
+     *   先建立关注关系再发帖, 帖子同步推送到粉丝的时间线
+     */
+    private void seed() throws InterruptedException {
+        UserService userService = context.getBean(UserService.class);
+        UserDao userDao = context.getBean(UserDao.class);
+        int follows = intOption("follows", 20);
+        int posts = intOption("posts", 5);
+        long begin = System.currentTimeMillis();
+
+        parallel(users, i -> userService.regUser(name(i), PASSWORD));
+        log("注册%d个用户", users);
+
+        parallel(users, i -> {
+            Random random = new Random(i);
+            for (int j = 0; j < follows; j++) {
+                int target = zipf.sample(random);
+                if (target != i) {
+                    userDao.follow(name(target), name(i));
+                }
+            }
+        });
+        log("建立约%d个关注关系", (long) users * follows);
+
+        parallel(users, i -> {
+            String uid = userDao.findUid(name(i));
+            Random random = new Random(-i);
+            for (int j = 0; j < posts; j++) {
+                Post post = newPost(i, Long.parseLong(uid), random);
+                userDao.fanOut(uid, userDao.savePost(post));
+            }
+        });
+        log("发布%d个帖子, 数据集生成耗时%dms", (long) users * posts, System.currentTimeMillis() - begin);
+    }
+
+    private void parallel(int n, IntConsumer task) throws InterruptedException {
+        ExecutorService pool = Executors.newFixedThreadPool(16);
+        AtomicLong failures = new AtomicLong();
+        for (int i = 0; i < n; i++) {
+            int index = i;
+            pool.execute(() -> {
+                try {
+                    task.accept(index);
+                } catch (RuntimeException e) {
+                    if (failures.incrementAndGet() == 1) {
+                        e.printStackTrace();
+                    }
+                }
+            });
+        }
+        pool.shutdown();
+        pool.awaitTermination(1, TimeUnit.DAYS);
+        if (failures.get() > 0) {
+            log("%d个任务失败", failures.get());
+        }
+    }
+
+    /**
+     * 按目标速率发出请求并统计延迟
+     * @param target
+     */
+    private void drive(Target target) throws Exception {
+        Mix mix = new Mix(option("mix", "timeline:30,profile:60,post:7,follow:3"));
+        double rate = Double.parseDouble(option("rate", "200"));
+        long warmupNanos = TimeUnit.SECONDS.toNanos(intOption("warmup", 5));
+        long durationNanos = TimeUnit.SECONDS.toNanos(intOption("duration", 30));
+        long intervalNanos = (long) (TimeUnit.SECONDS.toNanos(1) / rate);
+
+        Map<String, Recorder> recorders = new LinkedHashMap<>();
+        Map<String, Histogram> totals = new LinkedHashMap<>();
+        Map<String, AtomicLong> errors = new HashMap<>();
+        for (String op : mix.ops) {
+            recorders.put(op, new Recorder(3));
+            totals.put(op, new Histogram(3));
+            errors.put(op, new AtomicLong());
+        }
+
+        File out = new File(option("out", "load.hlog"));
+        try (PrintStream stream = new PrintStream(out, "UTF-8")) {
+            HistogramLogWriter writer = new HistogramLogWriter(stream);
+            writer.outputComment("retwis load, rate=" + rate + "/s, mix=" + option("mix", "default"));
+            writer.outputLogFormatVersion();
+            long startMillis = System.currentTimeMillis();
+            writer.outputStartTime(startMillis);
+            writer.setBaseTime(startMillis);
+            writer.outputLegend();
+
+            ExecutorService workers = Executors.newFixedThreadPool(intOption("threads", 64));
+            long start = System.nanoTime();
+            long measureStart = start + warmupNanos;
+            long end = measureStart + durationNanos;
+            long nextLog = measureStart + TimeUnit.SECONDS.toNanos(1);
+            log("开始发出请求, 目标速率%.0f/s", rate);
+            for (long i = 0; ; i++) {
+                long intended = start + i * intervalNanos;
+                if (intended >= end) {
+                    break;
+                }
+                long now;
+                while ((now = System.nanoTime()) < intended) {
+                    LockSupport.parkNanos(intended - now);
+                }
+                if (now >= nextLog) {
+                    logInterval(writer, recorders, totals);
+                    nextLog += TimeUnit.SECONDS.toNanos(1);
+                }
+                String op = mix.pick(ThreadLocalRandom.current());
+                // 预热期间的请求不计入结果, 错误数和耗时统计同一段时间
+                boolean measured = intended >= measureStart;
+                workers.execute(() -> {
+                    try {
+                        target.run(op, ThreadLocalRandom.current());
+                    } catch (Exception e) {
+                        if (measured) {
+                            errors.get(op).incrementAndGet();
+                        }
+                    }
+                    // 从计划时间开始计算, 包括在队列中等待的时间
+                    if (measured) {
+                        recorders.get(op).recordValue(System.nanoTime() - intended);
+                    }
+                });
+            }
+            workers.shutdown();
+            workers.awaitTermination(1, TimeUnit.MINUTES);
+            logInterval(writer, recorders, totals);
+        }
+        report(totals, errors, durationNanos);
+        log("直方图日志已写入%s", out.getAbsolutePath());
+    }
+
+    private static void logInterval(HistogramLogWriter writer, Map<String, Recorder> recorders,
+                                     Map<String, Histogram> totals) {
+        for (Map.Entry<String, Recorder> entry : recorders.entrySet()) {
+            Histogram interval = entry.getValue().getIntervalHistogram();
+            interval.setTag(entry.getKey());
+            writer.outputIntervalHistogram(interval);
+            totals.get(entry.getKey()).add(interval);
+        }
+    }
+
+    private static void report(Map<String, Histogram> totals, Map<String, AtomicLong> errors, long durationNanos) {
+        double seconds = durationNanos / 1e9;
+        System.out.printf("%n%-10s %10s %8s %10s %10s %10s %10s %10s%n",
+                "op", "count", "errors", "rate(/s)", "p50(ms)", "p99(ms)", "p999(ms)", "max(ms)");
+        for (Map.Entry<String, Histogram> entry : totals.entrySet()) {
+            Histogram h = entry.getValue();
+            System.out.printf("%-10s %10d %8d %10.1f %10.3f %10.3f %10.3f %10.3f%n",
+                    entry.getKey(), h.getTotalCount(), errors.get(entry.getKey()).get(),
+                    h.getTotalCount() / seconds,
+                    millis(h.getValueAtPercentile(50)), millis(h.getValueAtPercentile(99)),
+                    millis(h.getValueAtPercentile(99.9)), millis(h.getMaxValue()));
+        }
+    }
+
+    private static double millis(long nanos) {
+        return nanos / 1e6;
+    }
+
+    private Post newPost(int user, long uid, Random random) {
+        Post post = new Post();
+        post.setUid(uid);
+        post.setUsername(name(user));
+        post.setPublishTime(System.currentTimeMillis());
+        post.setContent(content(random));
+        return post;
+    }
+
+    private String content(Random random) {
+        return "load " + random.nextInt(1000000) + " @" + name(zipf.sample(random)) + " <b>hello</b>";
+    }
+
+    private static String name(int i) {
+        return "load" + i;
+    }
+
+    private String option(String name, String defaultValue) {
+        return options.getOrDefault(name, defaultValue);
+    }
+
+    private int intOption(String name, int defaultValue) {
+        return Integer.parseInt(option(name, String.valueOf(defaultValue)));
+    }
+
+    private static void log(String format, Object... args) {
+        System.out.println(String.format(format, args));
+    }
+
+    /**
+     * Zipf分布, 排名k的概率与1/k^s成正比, 返回从0开始的排名
+     */
+    static class Zipf {
+
+        private final double[] cdf;
+
+        Zipf(int n, double s) {
+            cdf = new double[n];
+            double sum = 0;
+            for (int k = 1; k <= n; k++) {
+                sum += 1 / Math.pow(k, s);
+                cdf[k - 1] = sum;
+            }
+            for (int k = 0; k < n; k++) {
+                cdf[k] /= sum;
+            }
+        }
+
+        int sample(Random random) {
+            double p = random.nextDouble();
+            int lo = 0;
+            int hi = cdf.length - 1;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (cdf[mid] < p) {
+                    lo = mid + 1;
+                } else {
+                    hi = mid;
+                }
+            }
+            return lo;
+        }
+    }
+
+    /**
+     * 各操作的比例
+     */
+    static class Mix {
+
+        private final List<String> ops = new ArrayList<>();
+        private final List<Integer> cumulative = new ArrayList<>();
+        private int total;
+
+        Mix(String spec) {
+            for (String part : spec.split(",")) {
+                String[] kv = part.split(":");
+                total += Integer.parseInt(kv[1].trim());
+                ops.add(kv[0].trim());
+                cumulative.add(total);
+            }
+        }
+
+        String pick(Random random) {
+            int r = random.nextInt(total);
+            for (int i = 0; i < ops.size(); i++) {
+                if (r < cumulative.get(i)) {
+                    return ops.get(i);
+                }
+            }
+            return ops.get(ops.size() - 1);
+        }
+    }
+
+    /**
+     * 被测对象
+     */
+    interface Target {
+
+        /**
+         * 执行一次操作
+         * @param op timeline, profile, post或follow
+         * @param random
+         */
+        void run(String op, Random random) throws Exception;
+    }
+
+    /**
+     * 直接调用UserService
+     */
+    class ServiceTarget implements Target {
+
+        private final UserService userService;
+
+        ServiceTarget(UserService userService) {
+            this.userService = userService;
+        }
+
+        @Override
+        public void run(String op, Random random) {
+            String actor = name(random.nextInt(users));
+            String other = name(zipf.sample(random));
+            switch (op) {
+                case "timeline":
+                    userService.findPosts(null, null, 50);
+                    userService.findUsers(10);
+                    break;
+                case "profile":
+                    if (userService.checkValid(other)) {
+                        userService.getUser(other);
+                        userService.getPosts(other, null, null, 10);
+                        userService.isFollowed(other, actor);
+                    }
+                    break;
+                case "post":
+                    Post post = new Post();
+                    post.setUid(userService.findUid(actor));
+                    post.setUsername(actor);
+                    post.setPublishTime(System.currentTimeMillis());
+                    post.setContent(content(random));
+                    userService.addPost(post);
+                    break;
+                case "follow":
+                    if (random.nextBoolean()) {
+                        userService.follow(other, actor);
+                    } else {
+                        userService.stopFollowing(other, actor);
+                    }
+                    break;
+                default:
+                    throw new IllegalArgumentException("未知的操作: " + op);
+            }
+        }
+    }
+
+    /**
+     * 请求运行中应用的http接口
+     *   发帖和关注使用预先登录的会话, 其余请求不带会话; 不跟随重定向
+     */
+    class HttpTarget implements Target {
+
+        private final String url;
+        private final List<String> cookies = new ArrayList<>();
+
+        HttpTarget(String url, int sessions) throws IOException {
+            this.url = url.endsWith("/") ? url.substring(0, url.length() - 1) : url;
+            Random random = new Random(0);
+            for (int i = 0; i < sessions; i++) {
+                String body = "username=" + name(random.nextInt(users)) + "&password=" + PASSWORD;
+                HttpURLConnection connection = request("POST", "/signIn", body, null);
+                String cookie = connection.getHeaderField("Set-Cookie");
+                drain(connection);
+                if (cookie != null) {
+                    cookies.add(cookie.split(";", 2)[0]);
+                }
+            }
+            if (sessions > 0 && cookies.isEmpty()) {
+                throw new IllegalStateException("没有登录成功的用户, 请先生成数据集");
+            }
+        }
+
+        @Override
+        public void run(String op, Random random) throws IOException {
+            String other = URLEncoder.encode(name(zipf.sample(random)), "UTF-8");
+            // --sessions=0时不登录, 只能请求只读页面
+            String cookie = cookies.isEmpty() ? null : cookies.get(random.nextInt(cookies.size()));
+            HttpURLConnection connection;
+            switch (op) {
+                case "timeline":
+                    connection = request("GET", "/timeline", null, null);
+                    break;
+                case "profile":
+                    connection = request("GET", "/profile/" + other, null, null);
+                    break;
+                case "post":
+                    connection = request("POST", "/post",
+                            "content=" + URLEncoder.encode(content(random), "UTF-8"), cookie);
+                    break;
+                case "follow":
+                    connection = request("GET", (random.nextBoolean() ? "/follow/" : "/stopFollowing/") + other,
+                            null, cookie);
+                    break;
+                default:
+                    throw new IllegalArgumentException("未知的操作: " + op);
+            }
+            int status = drain(connection);
+            if (status >= 400) {
+                throw new IOException(op + " 返回 " + status);
+            }
+        }
+
+        private HttpURLConnection request(String method, String path, String body, String cookie) throws IOException {
+            HttpURLConnection connection = (HttpURLConnection) new URL(url + path).openConnection();
+            connection.setInstanceFollowRedirects(false);
+            connection.setRequestMethod(method);
+            if (cookie != null) {
+                connection.setRequestProperty("Cookie", cookie);
+            }
+            if (body != null) {
+                connection.setDoOutput(true);
+                connection.setRequestProperty("Content-Type", "application/x-www-form-urlencoded");
+                try (OutputStream out = connection.getOutputStream()) {
+                    out.write(body.getBytes(StandardCharsets.UTF_8));
+                }
+            }
+            return connection;
+        }
+
+        /**
+         * 读完响应, 连接才能被keep-alive复用
+         * @param connection
+         * @return 状态码
+         */
+        private int drain(HttpURLConnection connection) throws IOException {
+            int status = connection.getResponseCode();
+            InputStream in = status >= 400 ? connection.getErrorStream() : connection.getInputStream();
+            if (in != null) {
+                byte[] buffer = new byte[8192];
+                while (in.read(buffer) >= 0) {
+                    // 丢弃响应内容
+                }
+                in.close();
+            }
+            return status;
+        }
+    }
+}
@@ -0,0 +1,40 @@
+package retwis.perf;
+
+import org.openjdk.jmh.infra.BenchmarkParams;
+import org.openjdk.jmh.infra.IterationParams;
+import org.openjdk.jmh.profile.InternalProfiler;
+import org.openjdk.jmh.results.AggregationPolicy;
+import org.openjdk.jmh.results.IterationResult;
+import org.openjdk.jmh.results.Result;
+import org.openjdk.jmh.results.ScalarResult;
+
+import java.util.Collection;
+import java.util.Collections;
+
+/**
+ * JMH profiler, 在结果中输出每次操作的redis往返次数
+ *   用法: -prof retwis.perf.RoundTripProfiler
+ */
+public class RoundTripProfiler implements InternalProfiler {
+
+    private long before;
+
+    @Override
+    public String getDescription() {
+        return "redis round trips per operation";
+    }
+
+    @Override
+    public void beforeIteration(BenchmarkParams benchmarkParams, IterationParams iterationParams) {
+        before = RoundTrips.count();
+    }
+
+    @Override
+    public Collection<? extends Result> afterIteration(BenchmarkParams benchmarkParams,
+                                                       IterationParams iterationParams,
+                                                       IterationResult result) {
+        long ops = result.getMetadata().getAllOps();
+        double perOp = ops == 0 ? Double.NaN : (double) (RoundTrips.count() - before) / ops;
+        return Collections.singletonList(new ScalarResult("redis.rt.norm", perOp, "rt/op", AggregationPolicy.AVG));
+    }
+}
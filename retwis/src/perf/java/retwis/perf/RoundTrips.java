@@ -0,0 +1,87 @@
+package retwis.perf;
+
+import org.springframework.beans.factory.config.BeanPostProcessor;
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.connection.RedisConnectionFactory;
+import org.springframework.util.ClassUtils;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 统计访问redis的往返次数
+ *   包装RedisConnectionFactory, 在它返回的连接上:
+ *     非pipeline时每条命令算一次往返, 一次pipeline整体算一次往返.
+ *   计数包括后台线程(推送, 合并写入等)产生的往返.
+ */
+public class RoundTrips implements BeanPostProcessor {
+
+    // 不访问redis的连接方法
+    private static final Set<String> LOCAL_METHODS = new HashSet<>(Arrays.asList(
+            "close", "isClosed", "getNativeConnection", "isQueueing", "isPipelined",
+            "isSubscribed", "getSubscription", "getSentinelConnection",
+            "equals", "hashCode", "toString"));
+
+    private static final LongAdder COUNT = new LongAdder();
+
+    /**
+     * 至今的往返次数
+     * @return
+     */
+    public static long count() {
+        return COUNT.sum();
+    }
+
+    @Override
+    public Object postProcessAfterInitialization(Object bean, String beanName) {
+        if (!(bean instanceof RedisConnectionFactory)) {
+            return bean;
+        }
+        return Proxy.newProxyInstance(bean.getClass().getClassLoader(),
+                ClassUtils.getAllInterfacesForClass(bean.getClass()),
+                (proxy, method, args) -> {
+                    Object result = invoke(bean, method, args);
+                    if (result instanceof RedisConnection) {
+                        return countingConnection((RedisConnection) result);
+                    }
+                    return result;
+                });
+    }
+
+    private static RedisConnection countingConnection(RedisConnection connection) {
+        InvocationHandler handler = new InvocationHandler() {
+            // 是否处于pipeline中, 每个连接同时只被一个线程使用
+            private boolean pipelined;
+
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                String name = method.getName();
+                if (name.equals("openPipeline")) {
+                    pipelined = true;
+                } else if (name.equals("closePipeline")) {
+                    pipelined = false;
+                    COUNT.increment();
+                } else if (!pipelined && !LOCAL_METHODS.contains(name)) {
+                    COUNT.increment();
+                }
+                return RoundTrips.invoke(connection, method, args);
+            }
+        };
+        return (RedisConnection) Proxy.newProxyInstance(connection.getClass().getClassLoader(),
+                ClassUtils.getAllInterfacesForClass(connection.getClass()), handler);
+    }
+
+    private static Object invoke(Object target, Method method, Object[] args) throws Throwable {
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException e) {
+            throw e.getTargetException();
+        }
+    }
+}
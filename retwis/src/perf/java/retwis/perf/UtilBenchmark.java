@@ -0,0 +1,75 @@
+package retwis.perf;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import retwis.util.KeyUtils;
+import retwis.util.MD5Utils;
+import retwis.util.TimeUtils;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 工具类的基准测试
+ *   MD5Utils在注册和登录时调用, KeyUtils在每次访问redis时调用,
+ *   TimeUtils在渲染页面时对每个帖子调用一次.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class UtilBenchmark {
+
+    private String password;
+    private String hashed;
+    private String uid;
+    private long[] publishTimes;
+    private int next;
+
+    @Setup
+    public void setup() {
+        password = "correct horse battery";
+        hashed = MD5Utils.saltAndMD5(password);
+        uid = "1048576";
+        // 时间线上的帖子: 从几秒前到几年前
+        long now = System.currentTimeMillis();
+        publishTimes = new long[]{
+                now - 5 * TimeUtils.SECOND, now - 42 * TimeUtils.MINUTE, now - 7 * TimeUtils.HOUR,
+                now - 3 * TimeUtils.DAY, now - 5 * TimeUtils.MONTH, now - 2 * TimeUtils.YEAR};
+    }
+
+    @Benchmark
+    public String md5Salt() {
+        return MD5Utils.saltAndMD5(password);
+    }
+
+    @Benchmark
+    public boolean md5Verify() {
+        return MD5Utils.saltverifyMD5(password, hashed);
+    }
+
+    @Benchmark
+    public String keyPosts() {
+        return KeyUtils.posts(uid);
+    }
+
+    @Benchmark
+    public String keyTimeline() {
+        return KeyUtils.timeline(uid);
+    }
+
+    @Benchmark
+    public String convertTime() {
+        next = (next + 1) % publishTimes.length;
+        return TimeUtils.convertTime(publishTimes[next]);
+    }
+}
@@ -0,0 +1,135 @@
+package retwis.archive;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import retwis.pojo.Post;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 归档的追加, 重新打开时扫描段文件, 按id查找和分页
+ */
+class PostArchiveTests {
+
+    @TempDir
+    File dir;
+
+    private final List<PostArchive> opened = new ArrayList<>();
+
+    @AfterEach
+    void close() {
+        for (PostArchive archive : opened) {
+            archive.close();
+        }
+    }
+
+    @Test
+    void appendAndFind() throws Exception {
+        PostArchive archive = open(1 << 16);
+        assertEquals(-1, archive.lastPid());
+        assertEquals(3, archive.append(Arrays.asList(post(1), post(3), post(5))));
+        assertEquals(5, archive.lastPid());
+
+        Post found = archive.find(3);
+        assertEquals(3L, found.getId());
+        assertEquals("post 3", found.getContent());
+        assertEquals(7L, found.getUid());
+        assertEquals("alice", found.getUsername());
+        assertEquals(1003L, found.getPublishTime());
+        assertNull(archive.find(2));
+        assertNull(archive.find(6));
+    }
+
+    @Test
+    void skipsPidsNotAfterLastPid() throws Exception {
+        PostArchive archive = open(1 << 16);
+        archive.append(Arrays.asList(post(10), post(20)));
+        // 晚到的帖子和重复归档的帖子不会写入
+        assertEquals(1, archive.append(Arrays.asList(post(15), post(20), post(30))));
+        assertEquals(30, archive.lastPid());
+        assertEquals(3, archive.size());
+        assertNull(archive.find(15));
+    }
+
+    @Test
+    void olderAndNewer() throws Exception {
+        PostArchive archive = open(1 << 16);
+        archive.append(Arrays.asList(post(1), post(2), post(4), post(8)));
+
+        assertEquals(Arrays.asList("8", "4"), archive.older(null, 2));
+        assertEquals(Arrays.asList("4", "2", "1"), archive.older(8L, 10));
+        assertEquals(Arrays.asList("2", "1"), archive.older(3L, 10));
+        assertTrue(archive.older(1L, 10).isEmpty());
+
+        assertEquals(Arrays.asList("2", "4"), archive.newer(1, 2));
+        assertEquals(Arrays.asList("4", "8"), archive.newer(3, 10));
+        assertTrue(archive.newer(8, 10).isEmpty());
+    }
+
+    @Test
+    void rollsSegmentsAndPagesAcrossThem() throws Exception {
+        // 每个段只能放下几条记录
+        PostArchive archive = open(256);
+        List<Post> posts = new ArrayList<>();
+        for (long pid = 1; pid <= 20; pid++) {
+            posts.add(post(pid));
+        }
+        assertEquals(20, archive.append(posts));
+        assertTrue(dir.listFiles().length > 1);
+
+        assertEquals(Arrays.asList("12", "11", "10", "9", "8"), archive.older(13L, 5));
+        assertEquals(Arrays.asList("6", "7", "8", "9", "10"), archive.newer(5, 5));
+        for (long pid = 1; pid <= 20; pid++) {
+            assertEquals(pid, archive.find(pid).getId());
+        }
+    }
+
+    @Test
+    void reopenRebuildsIndex() throws Exception {
+        PostArchive archive = open(256);
+        List<Post> posts = new ArrayList<>();
+        for (long pid = 2; pid <= 40; pid += 2) {
+            posts.add(post(pid));
+        }
+        archive.append(posts);
+        archive.close();
+        opened.remove(archive);
+
+        PostArchive reopened = open(256);
+        assertEquals(20, reopened.size());
+        assertEquals(40, reopened.lastPid());
+        assertEquals("post 22", reopened.find(22).getContent());
+        assertNull(reopened.find(21));
+        assertEquals(Arrays.asList("20", "18"), reopened.older(21L, 2));
+        assertEquals(Arrays.asList("22", "24"), reopened.newer(20, 2));
+        // 重新打开后继续追加到最后一个段
+        assertEquals(1, reopened.append(Arrays.asList(post(30), post(41))));
+        assertEquals(41, reopened.lastPid());
+    }
+
+    private PostArchive open(int segmentBytes) throws Exception {
+        PostArchive archive = new PostArchive(new SimpleMeterRegistry(), dir.getPath(), segmentBytes);
+        archive.open();
+        opened.add(archive);
+        return archive;
+    }
+
+    private static Post post(long pid) {
+        Post post = new Post();
+        post.setId(pid);
+        post.setContent("post " + pid);
+        post.setUid(7L);
+        post.setUsername("alice");
+        post.setPublishTime(1000 + pid);
+        return post;
+    }
+}
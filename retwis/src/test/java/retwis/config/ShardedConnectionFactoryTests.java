@@ -0,0 +1,209 @@
+package retwis.config;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+import org.springframework.dao.InvalidDataAccessApiUsageException;
+import org.springframework.data.redis.connection.RedisConnectionFactory;
+import org.springframework.data.redis.connection.RedisStandaloneConfiguration;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.connection.jedis.JedisConnectionFactory;
+import org.springframework.data.redis.connection.lettuce.LettuceConnectionFactory;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import redis.embedded.RedisServer;
+import retwis.util.ConsistentHash;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 客户端分片: 两个进程内启动的redis作为分片, lettuce和jedis各测一遍
+ *   pipeline中不返回结果的命令(STATUS_COMMANDS)与客户端的实现一致, 合并后的结果按命令的顺序排列;
+ *   多键命令按分片拆分后合并.
+ */
+class ShardedConnectionFactoryTests {
+
+    private static final List<RedisServer> servers = new ArrayList<>();
+    private static final List<String> names = new ArrayList<>();
+
+    private final List<RedisConnectionFactory> factories = new ArrayList<>();
+    private ShardedConnectionFactory sharded;
+    private StringRedisTemplate template;
+    // 各分片直接连接的template, 用于检查键所在的分片
+    private final List<StringRedisTemplate> shardTemplates = new ArrayList<>();
+
+    // 分别落在分片0和分片1的hash tag
+    private String tag0;
+    private String tag1;
+
+    @BeforeAll
+    static void startServers() throws IOException {
+        for (int i = 0; i < 2; i++) {
+            int port = freePort();
+            RedisServer server = RedisServer.newRedisServer()
+                    .port(port)
+                    .setting("save \"\"")
+                    .setting("appendonly no")
+                    .build();
+            server.start();
+            servers.add(server);
+            names.add("localhost:" + port);
+        }
+    }
+
+    @AfterAll
+    static void stopServers() throws IOException {
+        for (RedisServer server : servers) {
+            server.stop();
+        }
+    }
+
+    @AfterEach
+    void destroy() throws Exception {
+        for (StringRedisTemplate shard : shardTemplates) {
+            shard.execute((RedisCallback<Object>) connection -> {
+                connection.flushDb();
+                return null;
+            });
+        }
+        sharded.destroy();
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"lettuce", "jedis"})
+    void pipelineMergesResultsInCommandOrder(String client) throws Exception {
+        connect(client);
+        String a0 = "a:{" + tag0 + "}";
+        String n0 = "n:{" + tag0 + "}";
+        String l0 = "l:{" + tag0 + "}";
+        String h1 = "h:{" + tag1 + "}";
+        String c1 = "c:{" + tag1 + "}";
+        String r1 = "r:{" + tag1 + "}";
+        template.opsForValue().set(r1, "renamed");
+        template.opsForValue().set(n0 + ":source", "dumped");
+        byte[] dump = template.dump(n0 + ":source");
+
+        List<Object> results = template.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            conn.set(a0, "a");
+            conn.hMSet(h1, Collections.singletonMap("f", "v"));
+            conn.setRange(a0, "b", 1);
+            conn.incr(c1);
+            conn.rPush(l0, "x", "y", "z");
+            conn.lTrim(l0, 0, 1);
+            conn.lSet(l0, 0, "w");
+            conn.get(a0);
+            conn.rename(r1, r1 + ":new");
+            conn.restore(bytes(n0), 0, dump);
+            conn.hGet(h1, "f");
+            conn.lRange(l0, 0, -1);
+            conn.exists(r1 + ":new");
+            conn.get(n0);
+            return null;
+        });
+
+        // hMSet, setRange, lTrim, lSet, rename, restore没有结果
+        assertEquals(Arrays.asList(true, 1L, 3L, "ab", "v", Arrays.asList("w", "y"), true, "dumped"), results);
+        // 键在hash tag所在的分片上
+        assertTrue(shardTemplates.get(0).hasKey(a0));
+        assertTrue(shardTemplates.get(0).hasKey(n0));
+        assertTrue(shardTemplates.get(1).hasKey(h1));
+        assertTrue(shardTemplates.get(1).hasKey(r1 + ":new"));
+        assertFalse(shardTemplates.get(1).hasKey(a0));
+        assertFalse(shardTemplates.get(0).hasKey(h1));
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"lettuce", "jedis"})
+    void multiKeyCommandsSplitAcrossShards(String client) throws Exception {
+        connect(client);
+        String k0 = "k:{" + tag0 + "}";
+        String j0 = "j:{" + tag0 + "}";
+        String k1 = "k:{" + tag1 + "}";
+        String missing = "m:{" + tag1 + "}";
+        template.opsForValue().set(k0, "0");
+        template.opsForValue().set(j0, "00");
+        template.opsForValue().set(k1, "1");
+
+        // 按参数的顺序返回, 不存在的键为null
+        assertEquals(Arrays.asList("1", "0", null, "00"),
+                template.opsForValue().multiGet(Arrays.asList(k1, k0, missing, j0)));
+        assertEquals(3L, template.countExistingKeys(Arrays.asList(k0, k1, j0, missing)));
+        // 同一个分片的键在pipeline中可以使用多键命令, 跨分片时报错
+        List<Object> results = template.executePipelined((RedisCallback<Object>) connection -> {
+            ((StringRedisConnection) connection).mGet(k0, j0);
+            return null;
+        });
+        assertEquals(Collections.singletonList(Arrays.asList("0", "00")), results);
+        assertThrows(InvalidDataAccessApiUsageException.class,
+                () -> template.executePipelined((RedisCallback<Object>) connection -> {
+                    ((StringRedisConnection) connection).mGet(k0, k1);
+                    return null;
+                }));
+
+        assertEquals(3L, template.delete(Arrays.asList(k0, k1, j0, missing)));
+        assertFalse(shardTemplates.get(0).hasKey(k0));
+        assertFalse(shardTemplates.get(0).hasKey(j0));
+        assertFalse(shardTemplates.get(1).hasKey(k1));
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"lettuce", "jedis"})
+    void rejectsTransactions(String client) throws Exception {
+        connect(client);
+        assertThrows(InvalidDataAccessApiUsageException.class,
+                () -> template.execute((RedisCallback<Object>) connection -> {
+                    connection.multi();
+                    return null;
+                }));
+    }
+
+    private void connect(String client) throws Exception {
+        for (String name : names) {
+            int colon = name.lastIndexOf(':');
+            RedisStandaloneConfiguration configuration = new RedisStandaloneConfiguration(
+                    name.substring(0, colon), Integer.parseInt(name.substring(colon + 1)));
+            factories.add(client.equals("jedis")
+                    ? new JedisConnectionFactory(configuration)
+                    : new LettuceConnectionFactory(configuration));
+        }
+        sharded = new ShardedConnectionFactory(names, factories);
+        sharded.afterPropertiesSet();
+        template = new StringRedisTemplate(sharded);
+        for (RedisConnectionFactory factory : factories) {
+            shardTemplates.add(new StringRedisTemplate(factory));
+        }
+        ConsistentHash ring = new ConsistentHash(names);
+        for (int i = 0; tag0 == null || tag1 == null; i++) {
+            String tag = String.valueOf(i);
+            if (ring.node(tag) == 0 && tag0 == null) {
+                tag0 = tag;
+            } else if (ring.node(tag) == 1 && tag1 == null) {
+                tag1 = tag;
+            }
+        }
+    }
+
+    private static byte[] bytes(String key) {
+        return key.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+}
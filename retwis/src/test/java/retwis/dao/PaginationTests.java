@@ -0,0 +1,179 @@
+package retwis.dao;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestInstance;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.test.annotation.DirtiesContext;
+import org.springframework.test.context.DynamicPropertyRegistry;
+import org.springframework.test.context.DynamicPropertySource;
+import org.springframework.util.FileSystemUtils;
+import redis.embedded.RedisServer;
+import retwis.pojo.Page;
+import retwis.pojo.Post;
+import retwis.util.KeyUtils;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+/**
+ * 按游标分页: 多路归并, 下一页的判断和翻页游标, 以及跨过redis和归档边界的翻页
+ *   使用进程内启动的空redis和临时的归档目录
+ */
+@SpringBootTest(properties = "retwis.archive.enabled=false")
+@DirtiesContext
+@TestInstance(TestInstance.Lifecycle.PER_CLASS)
+class PaginationTests {
+
+    private static RedisServer redisServer;
+    private static Path archiveDir;
+
+    @Autowired
+    private UserDao userDao;
+
+    @Autowired
+    private StringRedisTemplate template;
+
+    // 从旧到新的帖子id
+    private final List<String> pids = new ArrayList<>();
+
+    @DynamicPropertySource
+    static void redis(DynamicPropertyRegistry registry) throws IOException {
+        int port = freePort();
+        redisServer = RedisServer.newRedisServer()
+                .port(port)
+                .setting("save \"\"")
+                .setting("appendonly no")
+                .build();
+        redisServer.start();
+        archiveDir = Files.createTempDirectory("archive");
+        registry.add("spring.redis.port", () -> port);
+        registry.add("retwis.archive.dir", () -> archiveDir.toString());
+    }
+
+    @AfterAll
+    static void stopRedis() throws IOException {
+        if (redisServer != null) {
+            redisServer.stop();
+        }
+        FileSystemUtils.deleteRecursively(archiveDir);
+    }
+
+    /**
+     * 10个帖子, 最旧的4个移到归档
+     */
+    @BeforeAll
+    void seed() {
+        for (int i = 0; i < 10; i++) {
+            Post post = new Post();
+            post.setUid(1L);
+            post.setUsername("alice");
+            post.setContent("post " + i);
+            post.setPublishTime(System.currentTimeMillis());
+            pids.add(userDao.savePost(post));
+        }
+        assertEquals(4, userDao.archivePosts(Long.parseLong(pids.get(3)), 100));
+        assertEquals(6L, template.opsForZSet().zCard(KeyUtils.posts()));
+    }
+
+    @Test
+    void mergeDeduplicatesAcrossSources() {
+        List<Object> sources = Arrays.asList(
+                Arrays.asList("9", "7", "5"),
+                Arrays.asList("9", "8", "5", "3"),
+                Collections.emptyList());
+        assertEquals(Arrays.asList("9", "8", "7", "5", "3"), UserDao.merge(sources, false, 10));
+        assertEquals(Arrays.asList("9", "8", "7"), UserDao.merge(sources, false, 3));
+        assertEquals(Arrays.asList("1", "2", "4", "6"), UserDao.merge(Arrays.asList(
+                Arrays.asList("1", "4"),
+                Arrays.asList("2", "4", "6")), true, 10));
+    }
+
+    @Test
+    void toPageDetectsMoreWithLimitPlusOne() {
+        // 第一页, 多出一个: 有更旧的一页, 没有更新的一页
+        Page page = UserDao.toPage(list("9", "8", "7", "6"), false, false, 3);
+        assertNull(page.getNewer());
+        assertEquals(Page.cursor(7), page.getOlder());
+        // 从游标向更旧的方向翻页, 正好一页: 有更新的一页, 没有更旧的一页
+        page = UserDao.toPage(list("5", "4", "3"), false, true, 3);
+        assertEquals(Page.cursor(5), page.getNewer());
+        assertNull(page.getOlder());
+        // 向更新的方向翻页, 结果从旧到新, 翻转后从新到旧
+        List<String> pids = list("5", "6", "7", "8");
+        page = UserDao.toPage(pids, true, false, 3);
+        assertEquals(Arrays.asList("7", "6", "5"), pids);
+        assertEquals(Page.cursor(7), page.getNewer());
+        assertEquals(Page.cursor(5), page.getOlder());
+        page = UserDao.toPage(list("8", "9"), true, false, 3);
+        assertNull(page.getNewer());
+        assertEquals(Page.cursor(8), page.getOlder());
+        page = UserDao.toPage(new ArrayList<>(), false, true, 3);
+        assertNull(page.getNewer());
+        assertNull(page.getOlder());
+    }
+
+    /**
+     * 向更旧的方向翻到归档中的帖子, 再从最后一页向更新的方向翻回第一页
+     */
+    @Test
+    void cursorsCrossArchiveBoundary() {
+        Page page = userDao.findNewPosts(null, null, 3);
+        assertEquals(expected(9, 8, 7), ids(page));
+        assertNull(page.getNewer());
+        page = userDao.findNewPosts(page.getOlder(), null, 3);
+        assertEquals(expected(6, 5, 4), ids(page));
+        page = userDao.findNewPosts(page.getOlder(), null, 3);
+        assertEquals(expected(3, 2, 1), ids(page));
+        page = userDao.findNewPosts(page.getOlder(), null, 3);
+        assertEquals(expected(0), ids(page));
+        assertNull(page.getOlder());
+        assertEquals("post 0", page.getPosts().get(0).getContent());
+
+        page = userDao.findNewPosts(null, page.getNewer(), 3);
+        assertEquals(expected(3, 2, 1), ids(page));
+        page = userDao.findNewPosts(null, page.getNewer(), 3);
+        assertEquals(expected(6, 5, 4), ids(page));
+        page = userDao.findNewPosts(null, page.getNewer(), 3);
+        assertEquals(expected(9, 8, 7), ids(page));
+        assertNull(page.getNewer());
+    }
+
+    private List<String> expected(int... indexes) {
+        List<String> list = new ArrayList<>();
+        for (int i : indexes) {
+            list.add(pids.get(i));
+        }
+        return list;
+    }
+
+    private static List<String> ids(Page page) {
+        List<String> list = new ArrayList<>();
+        for (Post post : page.getPosts()) {
+            list.add(String.valueOf(post.getId()));
+        }
+        return list;
+    }
+
+    private static List<String> list(String... pids) {
+        return new ArrayList<>(Arrays.asList(pids));
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+}
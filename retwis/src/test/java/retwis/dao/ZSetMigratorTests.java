@@ -0,0 +1,133 @@
+package retwis.dao;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.ZSetOperations;
+import org.springframework.test.annotation.DirtiesContext;
+import org.springframework.test.context.DynamicPropertyRegistry;
+import org.springframework.test.context.DynamicPropertySource;
+import org.springframework.util.StreamUtils;
+import redis.clients.jedis.Jedis;
+import redis.embedded.RedisServer;
+import retwis.util.KeyUtils;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * list到sorted set的迁移: 启动前在redis中写入旧版本的list, 等待后台迁移完成后检查结果
+ *   chunk-size为100, 超过100个元素的list分块转换;
+ *   两条时间线模拟上次迁移中途重启, 已转换的部分留在key:migrating中, list中只剩未转换的部分.
+ */
+@SpringBootTest(properties = {
+        "retwis.archive.enabled=false",
+        "retwis.migration.chunk-size=100",
+        "retwis.migration.pause-millis=0"
+})
+@DirtiesContext
+class ZSetMigratorTests {
+
+    private static final int CHUNK_SIZE = 100;
+    private static final int LENGTH = 250;
+
+    private static RedisServer redisServer;
+
+    @Autowired
+    private StringRedisTemplate template;
+
+    @DynamicPropertySource
+    static void redis(DynamicPropertyRegistry registry) throws IOException {
+        int port = freePort();
+        redisServer = RedisServer.newRedisServer()
+                .port(port)
+                .setting("save \"\"")
+                .setting("appendonly no")
+                .build();
+        redisServer.start();
+        seed(port);
+        registry.add("spring.redis.port", () -> port);
+    }
+
+    @AfterAll
+    static void stopRedis() throws IOException {
+        if (redisServer != null) {
+            redisServer.stop();
+        }
+    }
+
+    /**
+     * 旧版本的数据: 帖子id列表从头部插入, 头部最新
+     */
+    private static void seed(int port) throws IOException {
+        String chunkScript = StreamUtils.copyToString(
+                new ClassPathResource("scripts/list_to_zset_chunk.lua").getInputStream(), StandardCharsets.UTF_8);
+        try (Jedis jedis = new Jedis("localhost", port)) {
+            jedis.set(KeyUtils.globalUid(), "3");
+            for (int pid = 1; pid <= LENGTH; pid++) {
+                jedis.lpush(KeyUtils.posts(), String.valueOf(pid));
+                jedis.lpush(KeyUtils.timeline("2"), String.valueOf(pid));
+                jedis.lpush(KeyUtils.timeline("3"), String.valueOf(pid));
+            }
+            jedis.lpush(KeyUtils.posts("1"), "1", "2", "3", "4", "5");
+            jedis.lpush(KeyUtils.following("1"), "2", "3");
+            // 中途重启: 用户2转换了一段, 剩下的仍超过一段; 用户3转换了两段, 剩下的不足一段
+            String begin = String.valueOf(System.currentTimeMillis());
+            String chunk = String.valueOf(CHUNK_SIZE);
+            for (String uid : new String[]{"2", "3", "3"}) {
+                String key = KeyUtils.timeline(uid);
+                assertEquals(0L, jedis.eval(chunkScript, Arrays.asList(key, KeyUtils.migrating(key)),
+                        Arrays.asList(begin, "member", chunk)));
+            }
+        }
+    }
+
+    @Test
+    void migratesListsInChunksAndResumes() throws InterruptedException {
+        for (int i = 0; i < 300 && !Boolean.TRUE.equals(template.hasKey(KeyUtils.postsMigrated())); i++) {
+            Thread.sleep(100);
+        }
+        assertTrue(template.hasKey(KeyUtils.postsMigrated()), "帖子迁移没有完成");
+        assertTrue(template.hasKey(KeyUtils.followMigrated()), "关注关系迁移没有完成");
+
+        for (String key : new String[]{KeyUtils.posts(), KeyUtils.timeline("2"), KeyUtils.timeline("3")}) {
+            assertConverted(key, LENGTH);
+            assertFalse(template.hasKey(KeyUtils.migrating(key)), key + "的临时sorted set没有删除");
+        }
+        assertConverted(KeyUtils.posts("1"), 5);
+        // 关注时间按list中的位置递减, 头部的关注最新
+        assertEquals(Arrays.asList("3", "2"),
+                Arrays.asList(template.opsForZSet().reverseRange(KeyUtils.following("1"), 0, -1).toArray()));
+    }
+
+    /**
+     * 键已转换为sorted set, 包含1到size的所有帖子id, 分数为帖子id
+     */
+    private void assertConverted(String key, int size) {
+        assertEquals("zset", template.type(key).code(), key);
+        Set<ZSetOperations.TypedTuple<String>> tuples = template.opsForZSet().rangeWithScores(key, 0, -1);
+        assertEquals(size, tuples.size(), key);
+        int pid = 1;
+        for (ZSetOperations.TypedTuple<String> tuple : tuples) {
+            assertEquals(String.valueOf(pid), tuple.getValue(), key);
+            assertEquals(pid, tuple.getScore().intValue(), key);
+            pid++;
+        }
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package retwis.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 一致性哈希: hash tag的规则与redis cluster相同, 节点的顺序不影响结果, 增加节点时只移动约1/n的键
+ */
+class ConsistentHashTests {
+
+    private static final List<String> NODES = Arrays.asList("10.0.0.1:6379", "10.0.0.2:6379", "10.0.0.3:6379");
+
+    private final ConsistentHash ring = new ConsistentHash(NODES);
+
+    @Test
+    void keysOfOneUserOnSameNode() {
+        for (int uid = 1; uid <= 100; uid++) {
+            int node = ring.node(String.valueOf(uid));
+            assertEquals(node, ring.node(KeyUtils.user(String.valueOf(uid))));
+            assertEquals(node, ring.node(KeyUtils.posts(String.valueOf(uid))));
+            assertEquals(node, ring.node(KeyUtils.timeline(String.valueOf(uid))));
+            assertEquals(node, ring.node(KeyUtils.followers(String.valueOf(uid))));
+            assertEquals(node, ring.node(KeyUtils.following(String.valueOf(uid))));
+            assertEquals(node, ring.node(KeyUtils.mentions(String.valueOf(uid))));
+        }
+    }
+
+    @Test
+    void hashTagRules() {
+        // 只取第一个{和之后第一个}之间的内容
+        assertEquals(ring.node("b"), ring.node("a{b}{c}"));
+        assertEquals(ring.node("b"), ring.node("{b}}"));
+        assertEquals(ring.node("{b"), ring.node("a{{b}"));
+        // 没有闭合的{按整个键取哈希, 与把整个键作为hash tag相同
+        assertEquals(ring.node("{x{y}"), ring.node("x{y"));
+        // 空的hash tag按整个键取哈希, 不会使用之后的{y}
+        Set<Integer> nodes = new HashSet<>();
+        for (int i = 0; i < 100; i++) {
+            nodes.add(ring.node("k" + i + "{}{y}"));
+        }
+        assertEquals(NODES.size(), nodes.size());
+    }
+
+    @Test
+    void independentOfNodeOrder() {
+        ConsistentHash reversed = new ConsistentHash(Arrays.asList(NODES.get(2), NODES.get(1), NODES.get(0)));
+        for (int i = 0; i < 1000; i++) {
+            String key = "key" + i;
+            assertEquals(NODES.get(ring.node(key)), NODES.get(2 - reversed.node(key)));
+        }
+    }
+
+    @Test
+    void balancedAndMovesAboutOneOverN() {
+        ConsistentHash grown = new ConsistentHash(Arrays.asList(
+                NODES.get(0), NODES.get(1), NODES.get(2), "10.0.0.4:6379"));
+        int keys = 30000;
+        int[] counts = new int[NODES.size()];
+        int moved = 0;
+        for (int i = 0; i < keys; i++) {
+            String key = "user:{" + i + "}";
+            int node = ring.node(key);
+            counts[node]++;
+            int after = grown.node(key);
+            if (after != node) {
+                // 只会移动到新节点
+                assertEquals(3, after);
+                moved++;
+            }
+        }
+        for (int count : counts) {
+            assertTrue(count > keys / 3 * 0.8 && count < keys / 3 * 1.2, "分布不均匀: " + Arrays.toString(counts));
+        }
+        assertTrue(moved > keys / 4 * 0.8 && moved < keys / 4 * 1.2, "移动了" + moved + "个键");
+    }
+}
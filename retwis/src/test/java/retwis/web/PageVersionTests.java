@@ -0,0 +1,130 @@
+package retwis.web;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestInstance;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.mock.mockito.SpyBean;
+import org.springframework.http.HttpHeaders;
+import org.springframework.test.annotation.DirtiesContext;
+import org.springframework.test.context.DynamicPropertyRegistry;
+import org.springframework.test.context.DynamicPropertySource;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
+import redis.embedded.RedisServer;
+import retwis.dao.PostIdGenerator;
+import retwis.dao.UserDao;
+import retwis.pojo.Post;
+import retwis.service.UserService;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+
+import static org.hamcrest.Matchers.containsString;
+import static org.mockito.Mockito.doCallRealMethod;
+import static org.mockito.Mockito.doReturn;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.content;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+/**
+ * 页面版本: 帖子id不按大小顺序写入时, 晚写入的较小id也要改变ETag和页面片段缓存的键
+ *   先取两个id, 用较大的id发帖并访问页面, 再用较小的id发帖, 带上之前的ETag访问应返回200和新帖子
+ */
+@SpringBootTest(properties = "retwis.archive.enabled=false")
+@AutoConfigureMockMvc
+@DirtiesContext
+@TestInstance(TestInstance.Lifecycle.PER_CLASS)
+class PageVersionTests {
+
+    private static RedisServer redisServer;
+
+    @Autowired
+    private MockMvc mockMvc;
+
+    @Autowired
+    private UserService userService;
+
+    @Autowired
+    private UserDao userDao;
+
+    @SpyBean
+    private PostIdGenerator postIds;
+
+    @DynamicPropertySource
+    static void redis(DynamicPropertyRegistry registry) throws IOException {
+        int port = freePort();
+        redisServer = RedisServer.newRedisServer()
+                .port(port)
+                .setting("save \"\"")
+                .setting("appendonly no")
+                .build();
+        redisServer.start();
+        registry.add("spring.redis.port", () -> port);
+    }
+
+    @AfterAll
+    static void stopRedis() throws IOException {
+        if (redisServer != null) {
+            redisServer.stop();
+        }
+    }
+
+    @BeforeAll
+    void seed() {
+        userService.regUser("alice", "secret1");
+        userService.regUser("bob", "secret1");
+    }
+
+    @Test
+    void profileChangesWithLatePost() throws Exception {
+        assertLatePostShown("/profile/alice", "alice");
+    }
+
+    @Test
+    void timelineChangesWithLatePost() throws Exception {
+        assertLatePostShown("/timeline", "bob");
+    }
+
+    /**
+     * 较大的id先写入并访问页面, 较小的id后写入, 之前的ETag不再匹配, 页面中有后写入的帖子
+     */
+    private void assertLatePostShown(String url, String name) throws Exception {
+        long earlier = postIds.next();
+        long later = postIds.next();
+        try {
+            doReturn(later).doReturn(earlier).when(postIds).next();
+            post(name, "posted first " + url);
+            MvcResult first = mockMvc.perform(get(url))
+                    .andExpect(status().isOk())
+                    .andExpect(content().string(containsString("posted first " + url)))
+                    .andReturn();
+            String etag = first.getResponse().getHeader(HttpHeaders.ETAG);
+
+            post(name, "posted late " + url);
+            mockMvc.perform(get(url).header(HttpHeaders.IF_NONE_MATCH, etag))
+                    .andExpect(status().isOk())
+                    .andExpect(content().string(containsString("posted late " + url)));
+        } finally {
+            doCallRealMethod().when(postIds).next();
+        }
+    }
+
+    private void post(String name, String content) {
+        Post post = new Post();
+        post.setUid(userService.findUid(name));
+        post.setUsername(name);
+        post.setContent(content);
+        post.setPublishTime(System.currentTimeMillis());
+        userDao.savePost(post);
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+}
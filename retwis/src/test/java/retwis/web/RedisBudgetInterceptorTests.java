@@ -0,0 +1,148 @@
+package retwis.web;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.MethodOrderer;
+import org.junit.jupiter.api.Order;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestInstance;
+import org.junit.jupiter.api.TestMethodOrder;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.http.HttpHeaders;
+import org.springframework.test.annotation.DirtiesContext;
+import org.springframework.test.context.DynamicPropertyRegistry;
+import org.springframework.test.context.DynamicPropertySource;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
+import redis.embedded.RedisServer;
+import retwis.dao.UserDao;
+import retwis.pojo.Post;
+import retwis.service.UserService;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+/**
+ * 页面访问redis的往返次数不超过预算, 严格模式下超出预算的请求会直接报错
+ *   使用进程内启动的空redis和固定的数据集, 检查每个页面第一次访问(页面片段和用户信息未缓存),
+ *   再次访问(已缓存)和带If-None-Match访问(304)的往返次数.
+ *   往返次数变化说明页面的redis访问方式变了, 需要确认后更新这里的数字.
+ */
+@SpringBootTest(properties = {
+        "retwis.redis.budget.round-trips=5",
+        "retwis.redis.budget.strict=true",
+        "retwis.redis.budget.header=true",
+        "retwis.archive.enabled=false"
+})
+@AutoConfigureMockMvc
+@DirtiesContext
+@TestInstance(TestInstance.Lifecycle.PER_CLASS)
+@TestMethodOrder(MethodOrderer.OrderAnnotation.class)
+class RedisBudgetInterceptorTests {
+
+    private static RedisServer redisServer;
+
+    @Autowired
+    private MockMvc mockMvc;
+
+    @Autowired
+    private UserService userService;
+
+    @Autowired
+    private UserDao userDao;
+
+    @DynamicPropertySource
+    static void redis(DynamicPropertyRegistry registry) throws IOException {
+        int port = freePort();
+        redisServer = RedisServer.newRedisServer()
+                .port(port)
+                .setting("save \"\"")
+                .setting("appendonly no")
+                .build();
+        redisServer.start();
+        registry.add("spring.redis.port", () -> port);
+    }
+
+    @AfterAll
+    static void stopRedis() throws IOException {
+        if (redisServer != null) {
+            redisServer.stop();
+        }
+    }
+
+    /**
+     * alice有5个帖子, bob和carol关注alice, bob有一个提到alice的帖子
+     */
+    @BeforeAll
+    void seed() {
+        for (String name : new String[]{"alice", "bob", "carol"}) {
+            userService.regUser(name, "secret1");
+        }
+        userDao.follow("alice", "bob");
+        userDao.follow("alice", "carol");
+        for (int i = 0; i < 5; i++) {
+            post("alice", "hello " + i);
+        }
+        post("bob", "hi @alice");
+    }
+
+    /**
+     * 第一次访问: 页面版本, 用户信息和关注数, 帖子id各一次往返, 帖子在发帖时已缓存;
+     * 再次访问: 用户信息已缓存; 304: 只查询页面版本
+     */
+    @Test
+    @Order(1)
+    void profileWithinBudget() throws Exception {
+        assertRoundTrips("/profile/alice", 3, 2, 1);
+    }
+
+    /**
+     * 第一次访问: 帖子列表的版本和用户名, 帖子id, 最近注册的用户各一次往返;
+     * 再次访问和304: 页面片段已缓存, 只查询帖子列表的版本和用户名
+     */
+    @Test
+    @Order(2)
+    void timelineWithinBudget() throws Exception {
+        assertRoundTrips("/timeline", 3, 1, 1);
+    }
+
+    /**
+     * 依次第一次访问, 再次访问和带If-None-Match访问页面, 检查每次的往返次数
+     */
+    private void assertRoundTrips(String url, int cold, int warm, int notModified) throws Exception {
+        MvcResult first = mockMvc.perform(get(url)).andExpect(status().isOk()).andReturn();
+        MvcResult second = mockMvc.perform(get(url)).andExpect(status().isOk()).andReturn();
+        String etag = second.getResponse().getHeader(HttpHeaders.ETAG);
+        MvcResult third = mockMvc.perform(get(url).header(HttpHeaders.IF_NONE_MATCH, etag))
+                .andExpect(status().isNotModified()).andReturn();
+        assertEquals(cold, roundTrips(first), "第一次访问" + url);
+        assertEquals(warm, roundTrips(second), "再次访问" + url);
+        assertEquals(notModified, roundTrips(third), "带If-None-Match访问" + url);
+    }
+
+    private static int roundTrips(MvcResult result) {
+        return Integer.parseInt(result.getResponse().getHeader("X-Redis-Round-Trips"));
+    }
+
+    private void post(String name, String content) {
+        Post post = new Post();
+        post.setUid(userService.findUid(name));
+        post.setUsername(name);
+        post.setContent(content);
+        post.setPublishTime(System.currentTimeMillis());
+        String pid = userDao.savePost(post);
+        userDao.fanOut(String.valueOf(post.getUid()), pid);
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+}